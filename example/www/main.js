@@ -68,7 +68,7 @@ var DeviceView = Backbone.View.extend({
 
 		var gotUuids = function(device) {
 			console.log('got UUID\'s for device', device);
-			var onConnection = function() {
+			var onConnection = function(connection) {
 				console.log('got connection');
 				self.model.set({
 					isConnected: true
@@ -83,7 +83,7 @@ var DeviceView = Backbone.View.extend({
 				}
 				console.log('output data to console...');
 				window.bluetooth.startConnectionManager(
-					console.log, onConnectionLost);
+					console.log, onConnectionLost, 'UTF-8', { id: connection.id });
 			}
 
 			window.bluetooth.connect(onConnection, onFail, {
@@ -112,7 +112,7 @@ var DeviceView = Backbone.View.extend({
 			state: BluetoothState.Busy
 		});
 
-		window.bluetooth.disconnect(onDisconnected);
+		window.bluetooth.disconnect(onDisconnected, null, self.model.get('address'));
 	}
 });
 
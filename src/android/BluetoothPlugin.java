@@ -1,8 +1,11 @@
 package org.apache.cordova.bluetooth;
 
+import java.util.UUID;
 import java.util.ArrayList;
+import java.util.regex.Pattern;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.PluginResult;
@@ -15,6 +18,7 @@ import org.json.JSONObject;
 import org.json.JSONException;
 
 import android.util.Log;
+import android.util.Base64;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
@@ -51,12 +55,95 @@ public class BluetoothPlugin extends CordovaPlugin
 	private static final String ACTION_IS_READING		= "isConnectionManaged";
 	private static final String ACTION_CONNECT 			= "connect";
 	private static final String ACTION_DISCONNECT 		= "disconnect";
+	private static final String ACTION_SET_PARALLELISM	= "setConnectParallelism";
+
+	private static final String ACTION_IS_LISTENING		= "isListening";
+	private static final String ACTION_START_LISTENING	= "startListening";
+	private static final String ACTION_STOP_LISTENING	= "stopListening";
 
 	private	static final String ACTION_START_READING	= "startConnectionManager";
 	private	static final String ACTION_STOP_READING		= "stopConnectionManager";
 
 	private static final String ACTION_WRITE			= "write";
 
+	private static final String ACTION_GET_DROPPED		= "getDroppedBytes";
+
+	/**
+	 * Encodings that are not charsets. HEX sends read data as a hexadecimal string and
+	 * BINARY as raw bytes, which JavaScript receives as an ArrayBuffer. Written BINARY data
+	 * is an ArrayBuffer, which Cordova passes as base64.
+	 */
+	private static final String ENCODING_HEX			= "HEX";
+	private static final String ENCODING_BINARY			= "BINARY";
+
+	/**
+	 * How many millis gathered reads can wait by default before they are delivered.
+	 */
+	private static final int DEFAULT_BATCH_DELAY		= 20;
+
+	/**
+	 * Maximum length of a frame by default, when the read data is split into frames.
+	 */
+	private static final int DEFAULT_MAX_FRAME_LENGTH	= 1024;
+
+	/**
+	 * How many bytes of read data can wait to be delivered by default.
+	 */
+	private static final int DEFAULT_QUEUE_CAPACITY		= 64 * 1024;
+
+	/**
+	 * How many bytes can wait to be written by default before writes are refused.
+	 */
+	private static final int DEFAULT_WRITE_HIGH_WATER_MARK	= 64 * 1024;
+
+	/**
+	 * How many millis writes can wait to be gathered by default.
+	 */
+	private static final int DEFAULT_GATHER_DELAY		= 10;
+
+	/**
+	 * How many millis apart raced connection types are started by default.
+	 */
+	private static final int DEFAULT_CONNECT_STAGGER	= 500;
+
+	/**
+	 * How many times a lost connection is tried to reconnect by default.
+	 */
+	private static final int DEFAULT_RECONNECT_ATTEMPTS	= 5;
+
+	/**
+	 * How many millis to wait by default before the first attempt to reconnect, and at
+	 * most between two attempts.
+	 */
+	private static final int DEFAULT_RECONNECT_DELAY	= 500;
+	private static final int DEFAULT_MAX_RECONNECT_DELAY	= 30 * 1000;
+
+	/**
+	 * How many clients can be connected at once by default when listening, which is as
+	 * many as a piconet can have active.
+	 */
+	private static final int DEFAULT_MAX_CLIENTS		= 7;
+
+	/**
+	 * Change of RSSI in dBm at which a device remembered by discovery is reported again.
+	 */
+	private static final int DEFAULT_RSSI_DELTA			= 10;
+
+	/**
+	 * Time in millis a discovered device can wait to be sent with others.
+	 */
+	private static final int DEFAULT_DISCOVERY_BATCH_DELAY	= 500;
+
+	/**
+	 * Number of devices whose UUIDs are fetched at once after discovery, when not given.
+	 */
+	private static final int DEFAULT_UUID_CONCURRENCY	= 3;
+
+	/**
+	 * Time in millis to wait for the UUIDs of a discovered device.
+	 */
+	private static final int DEFAULT_UUID_TIMEOUT		= 6000;
+
 	/**
 	 * Bluetooth interface
 	 */
@@ -67,6 +154,46 @@ public class BluetoothPlugin extends CordovaPlugin
 	 */
 	private CallbackContext _discoveryCallback;
 
+	/**
+	 * ID of the connection a targeted discovery connects once it matches a device, null if
+	 * there is none. The session of the connection shares the discovery callback until
+	 * the discovery is over.
+	 */
+	private String _discoveryConnectId;
+
+	/**
+	 * Set once a targeted discovery connecting to the matching device has reported it.
+	 */
+	private boolean _wasDiscoveryMatched;
+
+	/**
+	 * Discovered devices waiting to be sent together, when discovery is batched. Used from
+	 * the thread of the Handler and the thread executing the actions, and synchronized on.
+	 */
+	private final ArrayList<JSONObject> _discoveryBatch = new ArrayList<JSONObject>();
+
+	/**
+	 * Number of discovered devices sent together, 0 to send every device on its own.
+	 */
+	private int _discoveryBatchSize;
+
+	/**
+	 * Time in millis a discovered device can wait to be sent with others.
+	 */
+	private int _discoveryBatchDelay;
+
+	/**
+	 * Sends the batched devices once the first of them has waited for the batch delay.
+	 */
+	private final Runnable _discoveryBatchFlush = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flushDiscoveryBatch();
+		}
+	};
+
 	/**
 	 * Callback context for pairing devices.
 	 */
@@ -79,14 +206,15 @@ public class BluetoothPlugin extends CordovaPlugin
 	private CallbackContext	_uuidCallback;
 
 	/**
-	 * Callback context for the asynchronous connection attempt.
+	 * Callback context for connections accepted while listening.
 	 */
-	private CallbackContext _connectCallback;
+	private CallbackContext _listenCallback;
 
 	/**
-	 * Callback context for the asynchronous (and continuous) read operation.
+	 * Callbacks and encodings of the connections by their ID. Used from the threads
+	 * delivering the read data as well.
 	 */
-	private CallbackContext _ioCallback;
+	private final ConcurrentHashMap<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
 
 	/**
 	 * Is set to true when a discovery process is canceled or a new one is started when
@@ -95,10 +223,72 @@ public class BluetoothPlugin extends CordovaPlugin
 	private boolean _wasDiscoveryCanceled;
 
 	/**
-	 * Encoding used to read incoming data.
+	 * The JavaScript side of a single connection: its callbacks, and how the data read
+	 * from it is encoded.
+	 */
+	private static class Session
+	{
+		/**
+		 * Callback context for the asynchronous connection attempt.
+		 */
+		private CallbackContext _connectCallback;
+
+		/**
+		 * Callback context for the asynchronous (and continuous) read operation.
+		 * Used from the thread delivering the read data as well.
+		 */
+		private volatile CallbackContext _ioCallback;
+
+	}
+
+	/**
+	 * Encoding of the data read from a managed connection. Made every time the connection
+	 * manager is started and handed to its delivery thread, never changed after. The decoder
+	 * and codec keep state between reads, and are only used by that thread.
 	 */
-	private Charset _encoding;
-	private String _encodingStr;
+	private static class ReadFormat
+	{
+		private final String 		_encodingStr;
+
+		/**
+		 * Charset of the encoding, UTF-8 for HEX and BINARY.
+		 */
+		private final Charset 		_encoding;
+
+		/**
+		 * Decodes incoming data when the encoding is a charset, null otherwise.
+		 */
+		private final StreamDecoder _decoder;
+
+		/**
+		 * Encodes incoming data when the encoding is HEX, null otherwise.
+		 */
+		private final HexCodec 		_hexCodec;
+
+		/**
+		 * Constructor for ReadFormat.
+		 *
+		 * @param encodingStr A charset, HEX or BINARY.
+		 */
+		public ReadFormat(String encodingStr)
+		{
+			_encodingStr = encodingStr;
+
+			if(encodingStr.compareToIgnoreCase(ENCODING_HEX) == 0) {
+				_encoding 	= Charset.forName("UTF-8");
+				_decoder 	= null;
+				_hexCodec 	= new HexCodec();
+			} else if(encodingStr.compareToIgnoreCase(ENCODING_BINARY) == 0) {
+				_encoding 	= Charset.forName("UTF-8");
+				_decoder 	= null;
+				_hexCodec 	= null;
+			} else {
+				_encoding 	= Charset.forName(encodingStr);
+				_decoder 	= new StreamDecoder(_encoding);
+				_hexCodec 	= null;
+			}
+		}
+	}
 
 	/**
 	 * Initialize the Plugin, Cordova handles this.
@@ -109,11 +299,10 @@ public class BluetoothPlugin extends CordovaPlugin
 	public void initialize(CordovaInterface cordova, CordovaWebView view)
 	{
 		super.initialize(cordova, view);
-		_encodingStr = "UTF-8";
-		_encoding = Charset.forName(_encodingStr);
 		_wasDiscoveryCanceled = false;
 
 		_bluetooth = new BluetoothWrapper(cordova.getActivity().getBaseContext(), _handler);
+		_bluetooth.loadConnectionMemory(cordova.getThreadPool());
 	}
 
 	/**
@@ -182,6 +371,22 @@ public class BluetoothPlugin extends CordovaPlugin
 		{
 			disconnect(args, callbackCtx);
 		}
+		else if(ACTION_SET_PARALLELISM.equals(action))
+		{
+			setConnectParallelism(args, callbackCtx);
+		}
+		else if(ACTION_IS_LISTENING.equals(action))
+		{
+			isListening(args, callbackCtx);
+		}
+		else if(ACTION_START_LISTENING.equals(action))
+		{
+			startListening(args, callbackCtx);
+		}
+		else if(ACTION_STOP_LISTENING.equals(action))
+		{
+			stopListening(args, callbackCtx);
+		}
 		else if(ACTION_IS_READING.equals(action))
 		{
 			isConnectionManaged(args, callbackCtx);
@@ -198,6 +403,10 @@ public class BluetoothPlugin extends CordovaPlugin
 		{
 			write(args, callbackCtx);
 		}
+		else if(ACTION_GET_DROPPED.equals(action))
+		{
+			getDroppedBytes(args, callbackCtx);
+		}
 		else
 		{
 			Log.e(LOG_TAG, "Invalid Action[" + action + "]");
@@ -309,13 +518,11 @@ public class BluetoothPlugin extends CordovaPlugin
 	/**
 	 * Start a device discovery.
 	 *
-	 * @param args			Arguments given.
+	 * @param args			Arguments given. [Options], where options are optional.
 	 * @param callbackCtx	Where to send results.
 	 */
 	private void startDiscovery(JSONArray args, CallbackContext callbackCtx)
 	{
-		// TODO Someday add an option to fetch UUIDs at the same time
-
 		try
 		{
 			if(_bluetooth.isConnecting())
@@ -331,6 +538,8 @@ public class BluetoothPlugin extends CordovaPlugin
 
 					if(_discoveryCallback != null)
 					{
+						flushDiscoveryBatch();
+						releaseDiscoveryConnect();
 						this.error(_discoveryCallback,
 							"Discovery was stopped because a new discovery was started.",
 							BluetoothError.ERR_DISCOVERY_RESTARTED
@@ -339,13 +548,63 @@ public class BluetoothPlugin extends CordovaPlugin
 					}
 				}
 
-				_bluetooth.startDiscovery();
+				JSONObject opts = args.optJSONObject(0);
+				if(opts == null)
+				{
+					opts = new JSONObject();
+				}
+
+				DiscoveryOptions options 	= discoveryOptions(opts);
+				String connectId 			= options.connect != null ? options.connect.id : null;
+
+				if(connectId != null && (_sessions.containsKey(connectId) || _bluetooth.isConnected(connectId)))
+				{
+					this.error(callbackCtx, "There is already a connection in progress.", BluetoothError.ERR_CONNECTION_ALREADY_EXISTS);
+					return;
+				}
+
+				int batchSize 				= opts.optInt("batchSize", 0);
+				int batchDelay 				= opts.optInt("batchDelay", DEFAULT_DISCOVERY_BATCH_DELAY);
+
+				if(batchSize < 0 || batchDelay < 0)
+				{
+					throw new Exception("Batch size and delay can not be negative.");
+				}
+
+				synchronized(_discoveryBatch)
+				{
+					_discoveryBatchSize 	= batchSize;
+					_discoveryBatchDelay 	= batchDelay;
+				}
+
+				// The session is there before the connection can start, and shares the callback
+				if(connectId != null)
+				{
+					Session session = new Session();
+					session._connectCallback = callbackCtx;
+					_sessions.put(connectId, session);
+				}
+
+				try
+				{
+					_bluetooth.startDiscovery(options);
+				}
+				catch(Exception e)
+				{
+					if(connectId != null)
+					{
+						_sessions.remove(connectId);
+					}
+					throw e;
+				}
 
 				PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
 				result.setKeepCallback(true);
 				callbackCtx.sendPluginResult(result);
 
-				_discoveryCallback = callbackCtx;
+				_discoveryCallback 		= callbackCtx;
+				_discoveryConnectId 	= connectId;
+				_wasDiscoveryMatched 	= false;
 			}
 		}
 		catch(Exception e)
@@ -354,6 +613,237 @@ public class BluetoothPlugin extends CordovaPlugin
 		}
 	}
 
+	/**
+	 * Parse the options of startDiscovery.
+	 *
+	 * @param opts	Options given. {cacheTtl, rssiDelta, filter, stopOnMatch, connect, fetchUuids, uuidTimeout},
+	 * 				all of which are optional. Connect is {id, uuid, conn, timeout, stagger} like the arguments
+	 * 				of connect, and implies stopOnMatch. FetchUuids is either true or the number of devices
+	 * 				fetched at once. The batch options are handled by the plugin itself.
+	 * @return Options for BluetoothWrapper.
+	 * @throws Exception If an option is invalid.
+	 */
+	private DiscoveryOptions discoveryOptions(JSONObject opts) throws Exception
+	{
+		DiscoveryOptions options = new DiscoveryOptions();
+
+		options.cacheTtl 	= opts.optInt("cacheTtl", 0);
+		options.rssiDelta 	= opts.optInt("rssiDelta", DEFAULT_RSSI_DELTA);
+
+		if(options.cacheTtl < 0 || options.rssiDelta < 0)
+		{
+			throw new Exception("Cache TTL and RSSI delta can not be negative.");
+		}
+
+		JSONObject filter = opts.optJSONObject("filter");
+		if(filter != null)
+		{
+			options.filter = discoveryFilter(filter);
+		}
+
+		options.stopOnMatch = opts.optBoolean("stopOnMatch", false);
+
+		options.uuidConcurrency = opts.optInt("fetchUuids", opts.optBoolean("fetchUuids", false) ? DEFAULT_UUID_CONCURRENCY : 0);
+		options.uuidTimeout 	= opts.optInt("uuidTimeout", DEFAULT_UUID_TIMEOUT);
+
+		if(options.uuidConcurrency < 0 || options.uuidTimeout <= 0)
+		{
+			throw new Exception("UUID concurrency can not be negative, and the UUID timeout has to be positive.");
+		}
+
+		JSONObject connect = opts.optJSONObject("connect");
+		if(connect != null)
+		{
+			options.stopOnMatch = true;
+			options.connect 	= new DiscoveryOptions.Connect();
+
+			options.connect.id 		= connect.getString("id");
+			options.connect.uuid 	= connect.getString("uuid");
+			options.connect.timeout = connect.optInt("timeout", 0);
+			options.connect.stagger = connect.optInt("stagger", DEFAULT_CONNECT_STAGGER);
+
+			JSONArray connTypeArray = connect.optJSONArray("conn");
+			if(connTypeArray != null)
+			{
+				options.connect.connTypes = new String[connTypeArray.length()];
+				for(int i = 0; i < connTypeArray.length(); i++)
+				{
+					options.connect.connTypes[i] = connTypeArray.getString(i);
+				}
+			}
+			else
+			{
+				options.connect.connTypes = new String[] { connect.optString("conn", "Secure") };
+			}
+
+			// Fail now rather than once a device matches
+			for(String connType : options.connect.connTypes)
+			{
+				BluetoothWrapper.EConnectionType.valueOf(connType);
+			}
+			UUID.fromString(options.connect.uuid);
+		}
+
+		return options;
+	}
+
+	/**
+	 * Parse a filter for discovered devices.
+	 *
+	 * @param opts	Filter given. {minRssi, majorDeviceClasses, deviceClasses, name, addresses, addressPrefixes, uuids},
+	 * 				all of which are optional. Name is a regular expression found in the name.
+	 * @return The filter.
+	 * @throws Exception If a criterion is invalid.
+	 */
+	private DiscoveryFilter discoveryFilter(JSONObject opts) throws Exception
+	{
+		DiscoveryFilter filter = new DiscoveryFilter();
+
+		if(opts.has("minRssi"))
+		{
+			filter.minRssi = (short)opts.getInt("minRssi");
+		}
+
+		filter.majorDeviceClasses 	= intArray(opts.optJSONArray("majorDeviceClasses"));
+		filter.deviceClasses 		= intArray(opts.optJSONArray("deviceClasses"));
+
+		if(opts.has("name"))
+		{
+			filter.namePattern = Pattern.compile(opts.getString("name"));
+		}
+
+		JSONArray addresses = opts.optJSONArray("addresses");
+		if(addresses != null)
+		{
+			filter.addresses = new String[addresses.length()];
+			for(int i = 0; i < addresses.length(); i++)
+			{
+				filter.addresses[i] = addresses.getString(i).toUpperCase();
+			}
+		}
+
+		JSONArray prefixes = opts.optJSONArray("addressPrefixes");
+		if(prefixes != null)
+		{
+			filter.addressPrefixes = new String[prefixes.length()];
+			for(int i = 0; i < prefixes.length(); i++)
+			{
+				filter.addressPrefixes[i] = prefixes.getString(i).toUpperCase();
+			}
+		}
+
+		JSONArray uuids = opts.optJSONArray("uuids");
+		if(uuids != null)
+		{
+			filter.serviceUuids = new UUID[uuids.length()];
+			for(int i = 0; i < uuids.length(); i++)
+			{
+				filter.serviceUuids[i] = UUID.fromString(uuids.getString(i));
+			}
+		}
+
+		return filter;
+	}
+
+	private int[] intArray(JSONArray values) throws JSONException
+	{
+		if(values == null)
+		{
+			return null;
+		}
+
+		int[] ints = new int[values.length()];
+		for(int i = 0; i < values.length(); i++)
+		{
+			ints[i] = values.getInt(i);
+		}
+		return ints;
+	}
+
+	/**
+	 * Add a discovered device to the batch, sending the batch once it is full. The first
+	 * device of a batch starts the timer sending it.
+	 *
+	 * @param device The discovered device.
+	 */
+	private void batchDiscoveredDevice(JSONObject device)
+	{
+		synchronized(_discoveryBatch)
+		{
+			_discoveryBatch.add(device);
+
+			if(_discoveryBatch.size() >= _discoveryBatchSize)
+			{
+				flushDiscoveryBatch();
+			}
+			else if(_discoveryBatch.size() == 1)
+			{
+				_handler.postDelayed(_discoveryBatchFlush, _discoveryBatchDelay);
+			}
+		}
+	}
+
+	/**
+	 * Drop the session of the connection a targeted discovery was to make, if the discovery
+	 * ends before the connection was started. Must be called before the discovery callback
+	 * is finished.
+	 */
+	private void releaseDiscoveryConnect()
+	{
+		if(_discoveryConnectId != null)
+		{
+			Session session = _sessions.get(_discoveryConnectId);
+			if(session != null && session._connectCallback == _discoveryCallback && !_wasDiscoveryMatched)
+			{
+				_sessions.remove(_discoveryConnectId, session);
+			}
+			_discoveryConnectId = null;
+		}
+	}
+
+	/**
+	 * Called before the result of connecting is sent. If the connection was made by a
+	 * targeted discovery, the result finishes the discovery callback, so whatever is left
+	 * of the discovery is sent first.
+	 *
+	 * @param session Session of the connection.
+	 */
+	private void endDiscoveryConnect(Session session)
+	{
+		if(_discoveryCallback != null && session._connectCallback == _discoveryCallback)
+		{
+			flushDiscoveryBatch();
+			_discoveryConnectId = null;
+			_discoveryCallback 	= null;
+		}
+	}
+
+	/**
+	 * Send the batched devices as an array, keeping the callback to be used again.
+	 * Nothing is sent if the batch is empty.
+	 */
+	private void flushDiscoveryBatch()
+	{
+		synchronized(_discoveryBatch)
+		{
+			_handler.removeCallbacks(_discoveryBatchFlush);
+
+			if(!_discoveryBatch.isEmpty() && _discoveryCallback != null)
+			{
+				JSONArray devices = new JSONArray();
+				for(JSONObject device : _discoveryBatch)
+				{
+					devices.put(device);
+				}
+
+				PluginResult result = new PluginResult(PluginResult.Status.OK, devices);
+				result.setKeepCallback(true);
+				_discoveryCallback.sendPluginResult(result);
+			}
+			_discoveryBatch.clear();
+		}
+	}
+
 	/**
 	 * Stop device discovery.
 	 *
@@ -371,6 +861,8 @@ public class BluetoothPlugin extends CordovaPlugin
 
 				if(_discoveryCallback != null)
 				{
+					flushDiscoveryBatch();
+					releaseDiscoveryConnect();
 					this.error(_discoveryCallback,
 						"Discovery was cancelled.",
 						BluetoothError.ERR_DISCOVERY_CANCELED
@@ -528,14 +1020,15 @@ public class BluetoothPlugin extends CordovaPlugin
 	/**
 	 * See if we have a connection.
 	 *
-	 * @param args			Arguments given.
+	 * @param args			Arguments given. [ConnectionId], the ID is optional.
 	 * @param callbackCtx	Where to send results.
 	 */
 	private void isConnected(JSONArray args, CallbackContext callbackCtx)
 	{
 		try
 		{
-			callbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, _bluetooth.isConnected()));
+			String id = connectionId(args, 0);
+			callbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, id != null && _bluetooth.isConnected(id)));
 		}
 		catch(Exception e)
 		{
@@ -546,13 +1039,16 @@ public class BluetoothPlugin extends CordovaPlugin
 	/**
 	 * Attempt to connect to a device.
 	 *
-	 * @param args			Arguments given. [Address, UUID, ConnectionType(Secure, Insecure, Hax)], String format.
+	 * @param args			Arguments given. [ConnectionId, Address, UUID, ConnectionType(Secure, Insecure, Hax), Timeout, Stagger],
+	 * 						the connection type can be an array of types to race, the timeout and stagger in millis are optional.
 	 * @param callbackCtx	Where to send results.
 	 */
 	private void connect(JSONArray args, CallbackContext callbackCtx)
 	{
-		boolean isConnecting 	= _bluetooth.isConnecting();
-		boolean isConnected		= _bluetooth.isConnected();
+		String id = args.optString(0);
+
+		boolean isConnecting 	= _bluetooth.isConnecting(id);
+		boolean isConnected		= _sessions.containsKey(id);
 
 		if(isConnecting)
 		{
@@ -573,25 +1069,45 @@ public class BluetoothPlugin extends CordovaPlugin
 
 					if(_discoveryCallback != null)
 					{
+						flushDiscoveryBatch();
+						releaseDiscoveryConnect();
 						this.error(_discoveryCallback, "Discovery stopped because a connection attempt was started.", BluetoothError.ERR_DISCOVERY_CANCELED);
 					}
 				}
 
-				String address 		= args.getString(0);
-				String uuid			= args.getString(1);
-				String connTypeStr	= args.getString(2);
+				String address 		= args.getString(1);
+				String uuid			= args.getString(2);
+				int timeout 		= args.optInt(4, 0);
+				int stagger 		= args.optInt(5, DEFAULT_CONNECT_STAGGER);
+
+				String[] connTypes;
+				JSONArray connTypeArray = args.optJSONArray(3);
+				if(connTypeArray != null)
+				{
+					connTypes = new String[connTypeArray.length()];
+					for(int i = 0; i < connTypes.length; i++)
+					{
+						connTypes[i] = connTypeArray.getString(i);
+					}
+				}
+				else
+				{
+					connTypes = new String[] { args.getString(3) };
+				}
+
+				Session session = new Session();
+				session._connectCallback = callbackCtx;
+				_sessions.put(id, session);
 
-				_bluetooth.connect(address, uuid, connTypeStr);
+				_bluetooth.connect(id, address, uuid, connTypes, timeout, stagger);
 
 				PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
 				result.setKeepCallback(true);
 				callbackCtx.sendPluginResult(result);
-
-				_connectCallback = callbackCtx;
 			}
 			catch(Exception e)
 			{
-				_connectCallback = null;
+				_sessions.remove(id);
 
 				this.error(callbackCtx, e.getMessage(), BluetoothError.ERR_UNKNOWN);
 			}
@@ -599,16 +1115,23 @@ public class BluetoothPlugin extends CordovaPlugin
 	}
 
 	/**
-	 * Disconnect from the device currently connected to.
+	 * Disconnect the given connection.
 	 *
-	 * @param args			Arguments given.
+	 * @param args			Arguments given. [ConnectionId], the ID is optional.
 	 * @param callbackCtx	Where to send results.
 	 */
 	private void disconnect(JSONArray args, CallbackContext callbackCtx)
 	{
 		try
 		{
-			_bluetooth.disconnect();
+			String id = connectionId(args, 0);
+			if(id == null)
+			{
+				this.error(callbackCtx, "There is no connection to disconnect.", BluetoothError.ERR_CONNECTION_DOESNT_EXIST);
+				return;
+			}
+
+			_bluetooth.disconnect(id);
 			callbackCtx.success();
 		}
 		catch(Exception e)
@@ -618,25 +1141,120 @@ public class BluetoothPlugin extends CordovaPlugin
 	}
 
 	/**
-	 * See if we have a managed connection active (allows read/write).
+	 * Set how many connection attempts can be in progress at once.
 	 *
-	 * @param args			Arguments given.
+	 * @param args			Arguments given. [Parallelism]
 	 * @param callbackCtx	Where to send results.
 	 */
-	private void isConnectionManaged(JSONArray args, CallbackContext callbackCtx)
+	private void setConnectParallelism(JSONArray args, CallbackContext callbackCtx)
 	{
-		callbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, _bluetooth.isConnectionManaged()));
+		try
+		{
+			_bluetooth.setConnectParallelism(args.getInt(0));
+			callbackCtx.success();
+		}
+		catch(Exception e)
+		{
+			this.error(callbackCtx, e.getMessage(), BluetoothError.ERR_UNKNOWN);
+		}
 	}
 
 	/**
-	 * Start a managed connection, allowing read and write operations.
+	 * See if incoming connections are being listened for.
 	 *
 	 * @param args			Arguments given.
 	 * @param callbackCtx	Where to send results.
 	 */
+	private void isListening(JSONArray args, CallbackContext callbackCtx)
+	{
+		callbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, _bluetooth.isListening()));
+	}
+
+	/**
+	 * Start listening for incoming connections. Every accepted connection is sent to the
+	 * callback, which is kept until listening stops.
+	 *
+	 * @param args			Arguments given. [Name, UUID, Secure, MaxClients], the last two are optional.
+	 * @param callbackCtx	Where to send results.
+	 */
+	private void startListening(JSONArray args, CallbackContext callbackCtx)
+	{
+		try
+		{
+			String name 	= args.getString(0);
+			String uuid 	= args.getString(1);
+			boolean secure 	= args.optBoolean(2, true);
+			int maxClients 	= args.optInt(3, DEFAULT_MAX_CLIENTS);
+
+			_bluetooth.startListening(name, uuid, secure, maxClients);
+
+			PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+			result.setKeepCallback(true);
+			callbackCtx.sendPluginResult(result);
+
+			_listenCallback = callbackCtx;
+		}
+		catch(Exception e)
+		{
+			this.error(callbackCtx, e.getMessage(), BluetoothError.ERR_UNKNOWN);
+		}
+	}
+
+	/**
+	 * Stop listening for incoming connections. The accepted connections stay open.
+	 *
+	 * @param args			Arguments given.
+	 * @param callbackCtx	Where to send results.
+	 */
+	private void stopListening(JSONArray args, CallbackContext callbackCtx)
+	{
+		try
+		{
+			_bluetooth.stopListening();
+
+			if(_listenCallback != null)
+			{
+				this.error(_listenCallback, "Listening was stopped.", BluetoothError.ERR_LISTENING_STOPPED);
+				_listenCallback = null;
+			}
+
+			callbackCtx.success();
+		}
+		catch(Exception e)
+		{
+			this.error(callbackCtx, e.getMessage(), BluetoothError.ERR_UNKNOWN);
+		}
+	}
+
+	/**
+	 * See if we have a managed connection active (allows read/write).
+	 *
+	 * @param args			Arguments given. [ConnectionId], the ID is optional.
+	 * @param callbackCtx	Where to send results.
+	 */
+	private void isConnectionManaged(JSONArray args, CallbackContext callbackCtx)
+	{
+		String id = connectionId(args, 0);
+		callbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, id != null && _bluetooth.isConnectionManaged(id)));
+	}
+
+	/**
+	 * Start a managed connection, allowing read and write operations.
+	 *
+	 * @param args			Arguments given. [ConnectionId, Encoding(charset, HEX or BINARY), Options], the ID and
+	 * 						the options are optional.
+	 * @param callbackCtx	Where to send results.
+	 */
 	private void startConnectionManager(JSONArray args, CallbackContext callbackCtx)
 	{
-		if(_ioCallback != null)
+		String id 		= connectionId(args, 0);
+		Session session = id != null ? _sessions.get(id) : null;
+
+		if(session == null || !_bluetooth.isConnected(id))
+		{
+			this.error(callbackCtx, "There is no connection with the ID " + id + ".", BluetoothError.ERR_CONNECTION_DOESNT_EXIST);
+		}
+		else if(session._ioCallback != null)
 		{
 			this.error(callbackCtx, "There is already an active connection.", BluetoothError.ERR_CONNECTION_ALREADY_EXISTS);
 		}
@@ -644,35 +1262,237 @@ public class BluetoothPlugin extends CordovaPlugin
 		{
 			try
 			{
-				_encodingStr = args.getString(0);
-				if(_encodingStr.compareToIgnoreCase("HEX") != 0) {
-					_encoding = Charset.forName(_encodingStr);
+				final ReadFormat format 			= new ReadFormat(args.getString(1));
+				final CallbackContext ioCallback 	= callbackCtx;
+
+				JSONObject opts = args.optJSONObject(2);
+				if(opts == null)
+				{
+					opts = new JSONObject();
 				}
 
-				_bluetooth.startConnectionManager();
-				_ioCallback = callbackCtx;
+				// Keeps this callback and format for the data read before the manager is stopped,
+				// even if another one has been started meanwhile
+				BluetoothWrapper.ReadListener listener = new BluetoothWrapper.ReadListener()
+				{
+					@Override
+					public void onRead(String id, BufferPool.Slab slab)
+					{
+						read(format, ioCallback, slab);
+					}
+				};
+
+				session._ioCallback = callbackCtx;
+				_bluetooth.startConnectionManager(id, readOptions(opts, format._encoding), writeOptions(opts),
+					reconnectOptions(opts), listener);
 			}
 			catch(Exception e)
 			{
-				_ioCallback = null;
+				session._ioCallback = null;
 				this.error(callbackCtx, e.getMessage(), BluetoothError.ERR_UNKNOWN);
 			}
 		}
 	}
 
+	/**
+	 * Parse the options of startConnectionManager.
+	 *
+	 * @param opts	Options given. {queueCapacity, overflow(Block, DropOldest, DropNewest), batchSize, batchDelay,
+	 * 				delimiter, maxFrameLength, frameSize, lengthFieldSize, lengthFieldOffset, littleEndian},
+	 * 				all are optional.
+	 * @param charset	Charset of a delimiter given as a string.
+	 * @return Options for BluetoothWrapper.
+	 * @throws Exception If an option is invalid.
+	 */
+	private ReadOptions readOptions(JSONObject opts, Charset charset) throws Exception
+	{
+		ReadOptions options = new ReadOptions();
+
+		options.queueCapacity 	= opts.optInt("queueCapacity", DEFAULT_QUEUE_CAPACITY);
+		options.overflowPolicy 	= ReadQueue.EOverflowPolicy.valueOf(opts.optString("overflow", "Block"));
+		options.batchSize 		= opts.optInt("batchSize", 0);
+		options.batchDelay 		= opts.optInt("batchDelay", DEFAULT_BATCH_DELAY);
+		options.maxFrameLength 	= opts.optInt("maxFrameLength", DEFAULT_MAX_FRAME_LENGTH);
+
+		// Either a string in the read encoding, or an array of byte values
+		JSONArray delimiterBytes = opts.optJSONArray("delimiter");
+		if(delimiterBytes != null)
+		{
+			options.delimiter = new byte[delimiterBytes.length()];
+			for(int i = 0; i < delimiterBytes.length(); i++)
+			{
+				options.delimiter[i] = (byte)delimiterBytes.getInt(i);
+			}
+		}
+		else if(opts.has("delimiter"))
+		{
+			options.delimiter = opts.getString("delimiter").getBytes(charset);
+		}
+
+		options.frameSize 			= opts.optInt("frameSize", 0);
+		options.lengthFieldSize 	= opts.optInt("lengthFieldSize", 0);
+		options.lengthFieldOffset 	= opts.optInt("lengthFieldOffset", 0);
+		options.isLittleEndian 		= opts.optBoolean("littleEndian", false);
+
+		if(options.delimiter != null)
+		{
+			if(options.delimiter.length == 0)
+			{
+				throw new Exception("Delimiter can not be empty.");
+			}
+			if(options.maxFrameLength <= 0)
+			{
+				throw new Exception("Maximum frame length has to be positive.");
+			}
+		}
+
+		if(options.frameSize < 0)
+		{
+			throw new Exception("Frame size can not be negative.");
+		}
+
+		if(options.lengthFieldSize != 0)
+		{
+			if(options.lengthFieldSize != 1 && options.lengthFieldSize != 2 && options.lengthFieldSize != 4)
+			{
+				throw new Exception("Length field size has to be 1, 2 or 4.");
+			}
+			if(options.lengthFieldOffset < 0)
+			{
+				throw new Exception("Length field offset can not be negative.");
+			}
+			if(options.maxFrameLength < options.lengthFieldOffset + options.lengthFieldSize)
+			{
+				throw new Exception("Maximum frame length is too short to fit the length field.");
+			}
+		}
+		else if(opts.has("lengthFieldOffset"))
+		{
+			throw new Exception("Length field offset given without a length field size.");
+		}
+
+		if(options.queueCapacity <= 0)
+		{
+			throw new Exception("Queue capacity has to be positive.");
+		}
+		if(options.batchSize < 0 || options.batchSize > options.queueCapacity)
+		{
+			throw new Exception("Batch size can not be negative, or larger than the queue capacity.");
+		}
+
+		// The longest record put into the queue, which has to fit in it
+		int recordLength;
+		if(options.delimiter != null)
+		{
+			recordLength = options.maxFrameLength + options.delimiter.length;
+		}
+		else if(options.frameSize > 0)
+		{
+			recordLength = options.frameSize;
+		}
+		else if(options.lengthFieldSize > 0)
+		{
+			recordLength = options.maxFrameLength;
+		}
+		else
+		{
+			recordLength = BluetoothWrapper.READ_BUFFER_SIZE;
+		}
+
+		if(options.queueCapacity < recordLength)
+		{
+			throw new Exception("Queue capacity has to be at least " + recordLength + " bytes to fit a frame.");
+		}
+
+		return options;
+	}
+
+	/**
+	 * Parse the write options of startConnectionManager.
+	 *
+	 * @param opts	Options given. {writeHighWaterMark, gatherSize, gatherDelay}, all are optional.
+	 * @return Options for BluetoothWrapper.
+	 * @throws Exception If an option is invalid.
+	 */
+	private WriteOptions writeOptions(JSONObject opts) throws Exception
+	{
+		WriteOptions options = new WriteOptions();
+
+		options.highWaterMark 	= opts.optInt("writeHighWaterMark", DEFAULT_WRITE_HIGH_WATER_MARK);
+		options.gatherSize 		= opts.optInt("gatherSize", 0);
+		options.gatherDelay 	= opts.optInt("gatherDelay", DEFAULT_GATHER_DELAY);
+
+		if(options.highWaterMark <= 0)
+		{
+			throw new Exception("Write high-water mark has to be positive.");
+		}
+		if(options.gatherSize < 0 || options.gatherDelay < 0)
+		{
+			throw new Exception("Gather size and delay can not be negative.");
+		}
+
+		return options;
+	}
+
+	/**
+	 * Parse the reconnect options of startConnectionManager.
+	 *
+	 * @param opts	Options given. {reconnect}, where reconnect is either true or {maxAttempts, initialDelay, maxDelay},
+	 * 				all of which are optional.
+	 * @return Options for BluetoothWrapper, or null if the connection should not be reconnected.
+	 * @throws Exception If an option is invalid.
+	 */
+	private ReconnectOptions reconnectOptions(JSONObject opts) throws Exception
+	{
+		JSONObject reconnect = opts.optJSONObject("reconnect");
+		if(reconnect == null)
+		{
+			if(!opts.optBoolean("reconnect", false))
+			{
+				return null;
+			}
+			reconnect = new JSONObject();
+		}
+
+		ReconnectOptions options = new ReconnectOptions();
+
+		options.maxAttempts 	= reconnect.optInt("maxAttempts", DEFAULT_RECONNECT_ATTEMPTS);
+		options.initialDelay 	= reconnect.optInt("initialDelay", DEFAULT_RECONNECT_DELAY);
+		options.maxDelay 		= reconnect.optInt("maxDelay", DEFAULT_MAX_RECONNECT_DELAY);
+
+		if(options.maxAttempts < 1)
+		{
+			throw new Exception("There has to be at least one attempt to reconnect.");
+		}
+		if(options.initialDelay < 0 || options.maxDelay < options.initialDelay)
+		{
+			throw new Exception("Reconnect delays can not be negative, and the maximum can not be below the initial delay.");
+		}
+
+		return options;
+	}
+
 	/**
 	 * Stop the managed connection, preventing further read or write operations.
 	 *
-	 * @param args			Arguments given.
+	 * @param args			Arguments given. [ConnectionId], the ID is optional.
 	 * @param callbackCtx	Where to send results.
 	 */
 	private void stopConnectionManager(JSONArray args, CallbackContext callbackCtx)
 	{
 		try
 		{
-			if(_bluetooth.isConnectionManaged())
+			String id = connectionId(args, 0);
+
+			if(id != null && _bluetooth.isConnectionManaged(id))
 			{
-				_bluetooth.stopConnectionManager();
+				_bluetooth.stopConnectionManager(id);
+
+				Session session = _sessions.get(id);
+				if(session != null)
+				{
+					session._ioCallback = null;
+				}
 				callbackCtx.success();
 			}
 			else
@@ -690,20 +1510,24 @@ public class BluetoothPlugin extends CordovaPlugin
 	}
 
 	/**
-	 * Write given data to the managed connection.
+	 * Write given data to the managed connection. The data is queued and written on a thread
+	 * of its own, success is sent once it has been written.
 	 *
-	 * @param args			Arguments given. First argument should be the data you want to write.
+	 * @param args			Arguments given. [ConnectionId, Data, Encoding, ForceString, Flush], the ID and the flush flag
+	 * 						are optional.
 	 * @param callbackCtx	Where to send results.
 	 */
-	private void write(JSONArray args, CallbackContext callbackCtx)
+	private void write(JSONArray args, final CallbackContext callbackCtx)
 	{
 		Log.d(LOG_TAG, "write-method called");
 
 		try
 		{
-			Object data 		= args.get(0);
-			String encoding 	= args.getString(1);
-			boolean forceString = args.getBoolean(2);
+			String id 			= connectionId(args, 0);
+			Object data 		= args.get(1);
+			String encoding 	= args.getString(2);
+			boolean forceString = args.getBoolean(3);
+			boolean isFlush 	= args.optBoolean(4, false);
 
 			byte[] defaultBytes = new byte[4];
 			ByteBuffer buffer = ByteBuffer.wrap(defaultBytes);
@@ -711,8 +1535,11 @@ public class BluetoothPlugin extends CordovaPlugin
 			if(forceString || data.getClass() == String.class)
 			{
 				String dataString = (String)data;
-				if(encoding.compareToIgnoreCase("HEX") == 0) {
-					buffer = hexStringToByteArray(dataString);
+				if(encoding.compareToIgnoreCase(ENCODING_HEX) == 0) {
+					buffer = ByteBuffer.wrap(HexCodec.decode(dataString));
+				} else if(encoding.compareToIgnoreCase(ENCODING_BINARY) == 0) {
+					// ArrayBuffers arrive as base64
+					buffer = ByteBuffer.wrap(Base64.decode(dataString, Base64.NO_WRAP));
 				} else {
 					buffer = ByteBuffer.wrap(dataString.getBytes(encoding));
 				}
@@ -735,15 +1562,35 @@ public class BluetoothPlugin extends CordovaPlugin
 				return;
 			}
 
-			if(!_bluetooth.isConnected())
+			// A connection being reconnected has no socket, but still takes writes
+			if(id == null || !_bluetooth.isConnectionManaged(id))
 			{
 				this.error(callbackCtx, "There is no managed connection to write to.", BluetoothError.ERR_CONNECTION_DOESNT_EXIST);
 			}
 			else
 			{
-				buffer.rewind();
-				_bluetooth.write(buffer.array());
-				callbackCtx.success();
+				BluetoothWrapper.WriteListener listener = new BluetoothWrapper.WriteListener()
+				{
+					@Override
+					public void onWritten()
+					{
+						callbackCtx.success();
+					}
+
+					@Override
+					public void onWriteFailed(String error)
+					{
+						BluetoothPlugin.this.error(callbackCtx, error, BluetoothError.ERR_UNKNOWN);
+					}
+				};
+
+				if(!_bluetooth.write(id, buffer.array(), isFlush, listener))
+				{
+					this.error(callbackCtx,
+						"Too much data is waiting to be written.",
+						BluetoothError.ERR_WRITE_QUEUE_FULL
+					);
+				}
 			}
 		}
 		catch (Exception e)
@@ -752,35 +1599,114 @@ public class BluetoothPlugin extends CordovaPlugin
 		}
 	}
 
-    /**
-     * Convert a given string of hexadecimal numbers
-     * into a byte[] array where every 2 hex chars get packed into
-     * a single byte.
-     *
-     * E.g. "ffaa55" results in a 3 byte long byte array
-     *
-     * @param s
-     * @return
-     */
-    private ByteBuffer hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
-        }
-        return ByteBuffer.wrap(data);
-    }
-
-	final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
-	private String byteArrayToHexString(byte[] bytes) {
-		char[] hexChars = new char[bytes.length * 2];
-		for ( int j = 0; j < bytes.length; j++ ) {
-			int v = bytes[j] & 0xFF;
-			hexChars[j * 2] = hexArray[v >>> 4];
-			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-		}
-		return new String(hexChars);
+	/**
+	 * Get the number of read bytes the managed connection has dropped.
+	 *
+	 * @param args			Arguments given. [ConnectionId], the ID is optional.
+	 * @param callbackCtx	Where to send results.
+	 */
+	private void getDroppedBytes(JSONArray args, CallbackContext callbackCtx)
+	{
+		String id 	= connectionId(args, 0);
+		int dropped = id != null ? (int)Math.min(_bluetooth.getDroppedBytes(id), Integer.MAX_VALUE) : 0;
+		callbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, dropped));
+	}
+
+	/**
+	 * Get the ID of the connection an action is for. Calls made before there were several
+	 * connections give no ID, and go to the default connection.
+	 *
+	 * @param args	Arguments given.
+	 * @param index	Index of the ID in the arguments.
+	 * @return The given ID, or the ID of the default connection, or null if no ID was given
+	 * 			and there is no default connection.
+	 *
+	 * @see BluetoothWrapper#getDefaultConnectionId()
+	 */
+	private String connectionId(JSONArray args, int index)
+	{
+		if(args.isNull(index))
+		{
+			return _bluetooth.getDefaultConnectionId();
+		}
+		return args.optString(index);
+	}
+
+	/**
+	 * Send data read from a managed connection to JavaScript. Invoked on the thread
+	 * delivering the read data of the connection.
+	 *
+	 * @param format		Encoding of the data.
+	 * @param ioCallback	Callback of the connection manager that read the data.
+	 * @param slab			The read data.
+	 */
+	private void read(ReadFormat format, CallbackContext ioCallback, BufferPool.Slab slab)
+	{
+		PluginResult result;
+
+		if(format._encodingStr.compareToIgnoreCase(ENCODING_BINARY) == 0)
+		{
+			// Raw bytes, delivered to JavaScript as an ArrayBuffer
+			byte[] bytes = new byte[slab.length];
+			System.arraycopy(slab.data, 0, bytes, 0, slab.length);
+			result = new PluginResult(PluginResult.Status.OK, bytes);
+		}
+		else if(format._hexCodec != null)
+		{
+			result = new PluginResult(PluginResult.Status.OK, format._hexCodec.encode(slab.data, slab.length));
+		}
+		else
+		{
+			result = new PluginResult(PluginResult.Status.OK, format._decoder.decode(slab.data, slab.length));
+		}
+
+		result.setKeepCallback(true);
+		ioCallback.sendPluginResult(result);
+	}
+
+	/**
+	 * Send an event about a managed connection to its IO callback, among the read data.
+	 *
+	 * @param session	The session of the connection, can be null.
+	 * @param event		The event, with an "event" field naming it.
+	 */
+	private void sendEvent(Session session, JSONObject event)
+	{
+		CallbackContext ioCallback = session != null ? session._ioCallback : null;
+
+		if(ioCallback != null)
+		{
+			PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+			result.setKeepCallback(true);
+			ioCallback.sendPluginResult(result);
+		}
+		else
+		{
+			Log.e(LOG_TAG, "CallbackContext for IO doesn't exist.");
+		}
+	}
+
+	/**
+	 * Send an error to the callbacks of a session that has ended.
+	 *
+	 * @param session	The session.
+	 * @param msg		Why the session ended.
+	 * @param code		The error code.
+	 */
+	private void closeSession(Session session, String msg, int code)
+	{
+		if(session._connectCallback != null)
+		{
+			this.error(session._connectCallback, msg, code);
+			session._connectCallback = null;
+		}
+
+		CallbackContext ioCallback = session._ioCallback;
+		if(ioCallback != null)
+		{
+			this.error(ioCallback, msg, code);
+			session._ioCallback = null;
+		}
 	}
 
 	/**
@@ -811,6 +1737,17 @@ public class BluetoothPlugin extends CordovaPlugin
 					{
 						if(_discoveryCallback != null)
 						{
+							flushDiscoveryBatch();
+
+							// Matched and connecting, the result of connecting finishes the callback
+							if(_discoveryConnectId != null && _wasDiscoveryMatched)
+							{
+								_discoveryConnectId = null;
+								_discoveryCallback 	= null;
+								break;
+							}
+							releaseDiscoveryConnect();
+
 							PluginResult result = new PluginResult(PluginResult.Status.OK, false);
 							_discoveryCallback.sendPluginResult(result);
 							_discoveryCallback = null;
@@ -829,9 +1766,22 @@ public class BluetoothPlugin extends CordovaPlugin
 						JSONObject device = new JSONObject();
 						device.put("name", name);
 						device.put("address", address);
+						if(msg.getData().containsKey(BluetoothWrapper.DATA_DEVICE_RSSI))
+						{
+							device.put("rssi", msg.getData().getShort(BluetoothWrapper.DATA_DEVICE_RSSI));
+						}
+
+						if(_discoveryConnectId != null)
+						{
+							_wasDiscoveryMatched = true;
+						}
 
+						if(_discoveryBatchSize > 0)
+						{
+							batchDiscoveredDevice(device);
+						}
 						// Send one device at a time, keeping callback to be used again
-						if(_discoveryCallback != null)
+						else if(_discoveryCallback != null)
 						{
 							PluginResult result = new PluginResult(PluginResult.Status.OK, device);
 							result.setKeepCallback(true);
@@ -856,6 +1806,32 @@ public class BluetoothPlugin extends CordovaPlugin
 
 					break;
 
+				case BluetoothWrapper.MSG_DEVICE_UUIDS_FETCHED:
+
+					try
+					{
+						if(_discoveryCallback != null)
+						{
+							JSONObject device = new JSONObject();
+							device.put("name", msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME));
+							device.put("address", msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS));
+							device.put("uuids", new JSONArray(msg.getData().getStringArrayList(BluetoothWrapper.DATA_UUIDS)));
+
+							// Devices still batched were found before
+							flushDiscoveryBatch();
+
+							PluginResult result = new PluginResult(PluginResult.Status.OK, device);
+							result.setKeepCallback(true);
+							_discoveryCallback.sendPluginResult(result);
+						}
+					}
+					catch(JSONException e)
+					{
+						Log.e(LOG_TAG, "Failed to send fetched UUIDs. " + e.getMessage());
+					}
+
+					break;
+
 				case BluetoothWrapper.MSG_UUIDS_FOUND:
 
 					try
@@ -943,11 +1919,27 @@ public class BluetoothPlugin extends CordovaPlugin
 					break;
 
 				case BluetoothWrapper.MSG_CONNECTION_ESTABLISHED:
+				{
+					String id 		= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					String conn 	= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_TYPE);
+					Session session = _sessions.get(id);
 
-					if(_connectCallback != null)
+					if(session != null && session._connectCallback != null)
 					{
-						_connectCallback.success();
-						_connectCallback = null;
+						endDiscoveryConnect(session);
+						try
+						{
+							JSONObject connection = new JSONObject();
+							connection.put("id", id);
+							connection.put("conn", conn);
+
+							session._connectCallback.success(connection);
+						}
+						catch(JSONException e)
+						{
+							BluetoothPlugin.this.error(session._connectCallback, e.getMessage(), BluetoothError.ERR_UNKNOWN);
+						}
+						session._connectCallback = null;
 					}
 					else
 					{
@@ -955,17 +1947,20 @@ public class BluetoothPlugin extends CordovaPlugin
 					}
 
 					break;
+				}
 
 				case BluetoothWrapper.MSG_CONNECTION_FAILED:
+				{
+					String id 		= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					String error 	= msg.getData().getString(BluetoothWrapper.DATA_ERROR);
+					Session session = _sessions.remove(id);
 
-					String error = msg.getData().getString(BluetoothWrapper.DATA_ERROR);
-
-					if(_connectCallback != null)
+					if(session != null && session._connectCallback != null)
 					{
-						BluetoothPlugin.this.error(_connectCallback,
+						endDiscoveryConnect(session);
+						BluetoothPlugin.this.error(session._connectCallback,
 							error, BluetoothError.ERR_CONNECTING_FAILED
 						);
-						_connectCallback = null;
 					}
 					else
 					{
@@ -973,78 +1968,130 @@ public class BluetoothPlugin extends CordovaPlugin
 					}
 
 					break;
+				}
 
 				case BluetoothWrapper.MSG_CONNECTION_LOST:
+				{
+					String id 		= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					Session session = _sessions.remove(id);
 
-					if(_connectCallback != null)
+					if(session != null)
 					{
-						BluetoothPlugin.this.error(_connectCallback,
-							"Connection lost.", BluetoothError.ERR_CONNECTION_LOST
-						);
-						_connectCallback = null;
+						closeSession(session, "Connection lost.", BluetoothError.ERR_CONNECTION_LOST);
 					}
 
-					if(_ioCallback != null)
+					break;
+				}
+
+				case BluetoothWrapper.MSG_CONNECTION_RECONNECTING:
+				{
+					String id 		= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					Session session = _sessions.get(id);
+
+					try
 					{
-						BluetoothPlugin.this.error(_ioCallback,
-							"Connection lost.", BluetoothError.ERR_CONNECTION_LOST
-						);
-						_ioCallback = null;
+						JSONObject event = new JSONObject();
+						event.put("event", "reconnecting");
+						event.put("id", id);
+						event.put("attempt", msg.getData().getInt(BluetoothWrapper.DATA_RECONNECT_ATTEMPT));
+						event.put("delay", msg.getData().getInt(BluetoothWrapper.DATA_RECONNECT_DELAY));
+						event.put("error", msg.getData().getString(BluetoothWrapper.DATA_ERROR));
+
+						sendEvent(session, event);
+					}
+					catch(JSONException e)
+					{
+						Log.e(LOG_TAG, "Failed to send reconnecting event. " + e.getMessage());
 					}
 
 					break;
+				}
 
-				case BluetoothWrapper.MSG_CONNECTION_STOPPED:
+				case BluetoothWrapper.MSG_CONNECTION_RECONNECTED:
+				{
+					String id 		= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					Session session = _sessions.get(id);
 
-					if(_connectCallback != null)
+					try
 					{
-						BluetoothPlugin.this.error(_connectCallback,
-							"Disconnected.", BluetoothError.ERR_DISCONNECTED
-						);
-						_connectCallback = null;
-					}
+						JSONObject event = new JSONObject();
+						event.put("event", "reconnected");
+						event.put("id", id);
+						event.put("conn", msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_TYPE));
 
-					if(_ioCallback != null)
+						sendEvent(session, event);
+					}
+					catch(JSONException e)
 					{
-						BluetoothPlugin.this.error(_ioCallback,
-							"Disconnected.", BluetoothError.ERR_DISCONNECTED
-						);
-						_ioCallback = null;
+						Log.e(LOG_TAG, "Failed to send reconnected event. " + e.getMessage());
 					}
 
 					break;
+				}
+
+				case BluetoothWrapper.MSG_CONNECTION_ACCEPTED:
+				{
+					String id = msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					_sessions.put(id, new Session());
 
-				case BluetoothWrapper.MSG_READ:
-					String data;
-					if(BluetoothPlugin.this._encodingStr.compareToIgnoreCase("HEX") == 0) 
+					if(_listenCallback != null)
 					{
-						data = byteArrayToHexString(msg.getData().getByteArray(BluetoothWrapper.DATA_BYTES));
-					} 
-					else 
+						try
+						{
+							JSONObject connection = new JSONObject();
+							connection.put("id", id);
+							connection.put("address", msg.getData().getString(BluetoothWrapper.DATA_DEVICE_ADDRESS));
+							connection.put("name", msg.getData().getString(BluetoothWrapper.DATA_DEVICE_NAME));
+
+							PluginResult result = new PluginResult(PluginResult.Status.OK, connection);
+							result.setKeepCallback(true);
+							_listenCallback.sendPluginResult(result);
+						}
+						catch(JSONException e)
+						{
+							Log.e(LOG_TAG, "Failed to send accepted connection. " + e.getMessage());
+						}
+					}
+					else
 					{
-						data = new String(
-							msg.getData().getByteArray(BluetoothWrapper.DATA_BYTES),
-							BluetoothPlugin.this._encoding);
+						Log.e(LOG_TAG, "CallbackContext for listening doesn't exist.");
 					}
 
+					break;
+				}
 
-					if(_ioCallback != null)
+				case BluetoothWrapper.MSG_LISTENING_STOPPED:
+
+					if(_listenCallback != null)
 					{
-						PluginResult result = new PluginResult(PluginResult.Status.OK, data);
-						result.setKeepCallback(true);
-						_ioCallback.sendPluginResult(result);
+						BluetoothPlugin.this.error(_listenCallback,
+							msg.getData().getString(BluetoothWrapper.DATA_ERROR),
+							BluetoothError.ERR_LISTENING_STOPPED
+						);
+						_listenCallback = null;
 					}
-					else
+
+					break;
+
+				case BluetoothWrapper.MSG_CONNECTION_STOPPED:
+				{
+					String id 		= msg.getData().getString(BluetoothWrapper.DATA_CONNECTION_ID);
+					Session session = _sessions.remove(id);
+
+					if(session != null)
 					{
-						Log.e(LOG_TAG, "CallbackContext for IO doesn't exist.");
+						closeSession(session, "Disconnected.", BluetoothError.ERR_DISCONNECTED);
 					}
 
 					break;
+				}
 
 				case BluetoothWrapper.MSG_BLUETOOTH_LOST:
 
 					if(_discoveryCallback != null)
 					{
+						flushDiscoveryBatch();
+						releaseDiscoveryConnect();
 						BluetoothPlugin.this.error(_discoveryCallback,
 							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
 						);
@@ -1067,21 +2114,43 @@ public class BluetoothPlugin extends CordovaPlugin
 						_uuidCallback = null;
 					}
 
-					if(_connectCallback != null)
+					if(_bluetooth.isListening())
 					{
-						BluetoothPlugin.this.error(_connectCallback,
-							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
-						);
-						_connectCallback = null;
+						try
+						{
+							_bluetooth.stopListening();
+						}
+						catch(Exception e)
+						{
+							Log.e(LOG_TAG, "Failed to stop listening. " + e.getMessage());
+						}
 					}
 
-					if(_ioCallback != null)
+					if(_listenCallback != null)
 					{
-						BluetoothPlugin.this.error(_ioCallback,
+						BluetoothPlugin.this.error(_listenCallback,
 							"Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST
 						);
-						_ioCallback = null;
+						_listenCallback = null;
+					}
+
+					for(String id : _bluetooth.getConnectionIds())
+					{
+						try
+						{
+							_bluetooth.disconnect(id);
+						}
+						catch(Exception e)
+						{
+							Log.e(LOG_TAG, "Failed to disconnect " + id + ". " + e.getMessage());
+						}
+					}
+
+					for(Session session : _sessions.values())
+					{
+						closeSession(session, "Bluetooth lost.", BluetoothError.ERR_BLUETOOTH_LOST);
 					}
+					_sessions.clear();
 
 					break;
 
@@ -1,20 +1,42 @@
 package org.apache.cordova.bluetooth;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
 import java.util.Set;
 import java.util.UUID;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.Iterator;
 import java.util.ArrayList;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import android.annotation.TargetApi;
 
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
 
 import android.content.Intent;
 import android.content.Context;
@@ -25,17 +47,16 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.AsyncTask;
 import android.os.Parcelable;
 
 import android.util.Log;
 
 
 /**
- * Wrapper for the standard Bluetooth API found in Android. Contains threads for
- * connecting and managing a connection. Please note that this is designed as a
- * thin wrapper around Android's native Bluetooth API and doesn't contain any
- * internal checks against overwriting active connections with new ones etc.
+ * Wrapper for the standard Bluetooth API found in Android. Contains threads for accepting,
+ * connecting and managing connections. Any number of connections can be open at once,
+ * each is identified by an ID given when connecting. Please note that this is designed
+ * as a thin wrapper around Android's native Bluetooth API.
  *
  * @see BluetoothAdapter
  * @see BluetoothDevice
@@ -53,19 +74,48 @@ public class BluetoothWrapper
 	public static final int MSG_CONNECTION_FAILED		= 4;
 	public static final int MSG_CONNECTION_STOPPED		= 5;
 	public static final int MSG_CONNECTION_LOST			= 6;
-	public static final int MSG_READ					= 8;
 	public static final int MSG_BLUETOOTH_LOST			= 9;
 	public static final int MSG_UUIDS_FOUND				= 10;
 	public static final int MSG_DEVICE_BONDED			= 11;
 	public static final int MSG_DEVICE_CONNECTED        = 12;
+	public static final int MSG_CONNECTION_RECONNECTING	= 13;
+	public static final int MSG_CONNECTION_RECONNECTED	= 14;
+	public static final int MSG_CONNECTION_ACCEPTED		= 15;
+	public static final int MSG_LISTENING_STOPPED		= 16;
+	public static final int MSG_DEVICE_UUIDS_FETCHED	= 17;
 
 	public static final String DATA_DEVICE_ADDRESS 		= "DeviceAddress";
 	public static final String DATA_DEVICE_NAME			= "DeviceName";
+	public static final String DATA_DEVICE_RSSI			= "DeviceRssi";
 	public static final String DATA_DEVICE_BOND_STATE	= "BondState";
-	public static final String DATA_BYTES				= "Bytes";
 	public static final String DATA_BYTES_READ			= "BytesRead";
 	public static final String DATA_UUIDS				= "Uuids";
 	public static final String DATA_ERROR				= "Error";
+	public static final String DATA_CONNECTION_ID		= "ConnectionId";
+	public static final String DATA_CONNECTION_TYPE		= "ConnectionType";
+	public static final String DATA_RECONNECT_ATTEMPT	= "ReconnectAttempt";
+	public static final String DATA_RECONNECT_DELAY		= "ReconnectDelay";
+
+	/**
+	 * How many connection attempts can be in progress at once by default.
+	 */
+	public static final int DEFAULT_CONNECT_PARALLELISM	= 4;
+
+	/**
+	 * RFCOMM channel of the Hax connection type, unless another one has worked before.
+	 */
+	private static final int HAX_CHANNEL				= 1;
+
+	/**
+	 * Size of the buffer a socket is read into. Also the longest record the ReadQueue of a
+	 * connection without frames holds, so that every read fits in a single record.
+	 */
+	public static final int READ_BUFFER_SIZE			= 1024;
+
+	/**
+	 * How long in seconds idle threads of the executors are kept around.
+	 */
+	private static final int THREAD_KEEP_ALIVE			= 30;
 
 	/**
 	 * Is used to send messages back to the user of this class.
@@ -79,22 +129,72 @@ public class BluetoothWrapper
 	private BluetoothAdapter 	_adapter;
 
 	/**
-	 * Socket that is synchronized between threads to allow stopping ConnectionManager
-	 * while retaining the connection itself.
+	 * Connections by their ID. A connection is added when connecting to it starts, and
+	 * removed when it is disconnected, lost or fails to connect.
+	 */
+	private final ConcurrentHashMap<String, Connection> _connections = new ConcurrentHashMap<String, Connection>();
+
+	/**
+	 * Runs the connection attempts. Attempts beyond its parallelism wait in its queue.
+	 */
+	private final ThreadPoolExecutor _connectExecutor;
+
+	/**
+	 * Times out connection attempts.
+	 */
+	private final ScheduledThreadPoolExecutor _timeoutExecutor;
+
+	/**
+	 * How the last successful connection to every device was made.
+	 */
+	private final ConnectionMemory _memory;
+
+	/**
+	 * Randomizes the delays between reconnect attempts.
+	 */
+	private final Random _random = new Random();
+
+	/**
+	 * Thread accepting incoming connections, null when not listening.
+	 */
+	private Server _server;
+
+	/**
+	 * Options of the latest discovery, null until a discovery is started.
+	 */
+	private volatile DiscoveryOptions _discoveryOptions;
+
+	/**
+	 * Set once a discovery stopping on a match has found one, so that the devices found
+	 * before it is canceled are ignored.
+	 */
+	private volatile boolean _isDiscoveryMatched;
+
+	/**
+	 * Devices reported by the latest discovery by their address, whose UUIDs are fetched
+	 * once it has finished. Synchronized on.
+	 */
+	private final LinkedHashMap<String, BluetoothDevice> _discoveredDevices = new LinkedHashMap<String, BluetoothDevice>();
+
+	/**
+	 * Set when the discovery is stopped, so that UUIDs are not fetched after it.
 	 */
-	private BluetoothSocket		_socket;
+	private volatile boolean _isDiscoveryStopped;
 
 	/**
-	 * Thread for attempting a connection. When successful, initializes a connected socket to the
-	 * <b>_socket</b> member of BluetoothWrapper.
+	 * Fetches the UUIDs of the devices of the latest discovery, null if there is none.
 	 */
-	private ConnectionAttempt	_connectionAttempt;
+	private volatile UuidFetcher _uuidFetcher;
 
 	/**
-	 * Thread for managing an active connection. Requires a connected socket to perform
-	 * read/write operations.
+	 * Addresses of the devices whose UUIDs were requested with fetchUuids, and not yet found.
 	 */
-	private ConnectionManager 	_connectionManager;
+	private final ConcurrentHashMap<String, Boolean> _uuidRequests = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Devices reported by discoveries, so that they are not reported again unless they change.
+	 */
+	private final DiscoveryCache _discoveryCache = new DiscoveryCache();
 
 	/**
 	 * Enumeration for various types of connections we can attempt.
@@ -120,11 +220,80 @@ public class BluetoothWrapper
 		Hax
 	}
 
+	/**
+	 * States of a connection. A connection moves between them with compare-and-set
+	 * transitions, so that only one thread acts on each change, and the state can be read
+	 * without locking.
+	 */
+	public enum EConnectionState
+	{
+		/**
+		 * Neither connected nor connecting.
+		 */
+		Idle,
+
+		/**
+		 * Being connected, or reconnected after it was lost while managed.
+		 */
+		Connecting,
+
+		/**
+		 * Has a connected socket that is not managed.
+		 */
+		Connected,
+
+		/**
+		 * Has a connected socket that is managed.
+		 */
+		Managed,
+
+		/**
+		 * Being disconnected, or closed after it was lost.
+		 */
+		Closing
+	}
+
+	/**
+	 * Receives the data read from a managed connection. Called on a thread dedicated to
+	 * delivering the data, in the order the data was read. Every ConnectionManager keeps
+	 * the listener it was started with, so the data read before it was stopped still goes
+	 * to that listener, before any data goes to the listener of the next one.
+	 */
+	public interface ReadListener
+	{
+		/**
+		 * Invoked for every read, batch or frame of data.
+		 *
+		 * @param id	ID of the connection the data was read from.
+		 * @param slab	The data, which is recycled after this returns.
+		 */
+		public void onRead(String id, BufferPool.Slab slab);
+	}
+
+	/**
+	 * Told about the outcome of a single write to a managed connection. Called on the
+	 * thread writing to the connection.
+	 */
+	public interface WriteListener
+	{
+		/**
+		 * Invoked once the data has been written to the socket.
+		 */
+		public void onWritten();
+
+		/**
+		 * Invoked if the data could not be written.
+		 *
+		 * @param error Why the write failed.
+		 */
+		public void onWriteFailed(String error);
+	}
+
 	/**
 	 * Constructor for the BluetoothWrapper class. Registers correct receivers for Bluetooth events.
 	 *
-	 * @param ctx       Application context, used to register receiver for various bluetooth related events.
-	 * @param handler	A Handler that is sent Messages using the codes specified in this class.
+	 * @param ctx       	Application context, used to register receiver for various bluetooth related events.
+	 * @param handler		A Handler that is sent Messages using the codes specified in this class.
 	 *
 	 * @see Context
 	 * @see Handler
@@ -132,9 +301,19 @@ public class BluetoothWrapper
 	 */
 	public BluetoothWrapper(Context ctx, Handler handler)
 	{
-		_handler = handler;
+		_handler 		= handler;
 		_adapter = BluetoothAdapter.getDefaultAdapter();
 
+		_connectExecutor = new ThreadPoolExecutor(DEFAULT_CONNECT_PARALLELISM, DEFAULT_CONNECT_PARALLELISM,
+			THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		_connectExecutor.allowCoreThreadTimeOut(true);
+
+		_memory = new ConnectionMemory(ctx);
+
+		_timeoutExecutor = new ScheduledThreadPoolExecutor(1);
+		_timeoutExecutor.setKeepAliveTime(THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+		_timeoutExecutor.allowCoreThreadTimeOut(true);
+
 		IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_CONNECTION_STATE_CHANGED);
 		ctx.registerReceiver(_receiver, filter);
 
@@ -230,7 +409,8 @@ public class BluetoothWrapper
 
 
 	/**
-	 * See if there is an ongoing device discovery process going on.
+	 * See if there is an ongoing device discovery process going on. Fetching the UUIDs of
+	 * the discovered devices is part of the discovery.
 	 *
 	 * @return True if Bluetooth is on and device discovery is in progress. Otherwise false.
 	 * @throws Exception If there is an error checking whether the discovery process is in progress.
@@ -239,7 +419,8 @@ public class BluetoothWrapper
 	{
 		try
 		{
-			return _adapter.isEnabled() && _adapter.isDiscovering();
+			UuidFetcher fetcher = _uuidFetcher;
+			return _adapter.isEnabled() && (_adapter.isDiscovering() || (fetcher != null && fetcher.isRunning()));
 		}
 		catch(Exception e)
 		{
@@ -252,14 +433,32 @@ public class BluetoothWrapper
 	 * Handler registered to this class. This will not cancel any current
 	 * discovery process, but you should do it anyways.
 	 *
+	 * A targeted discovery is canceled here as soon as a device matches, and connecting
+	 * to the device can start right away, without a round trip through the Handler.
+	 *
+	 * @param options How the found devices are reported.
 	 * @throws Exception If there is an error starting the discovery process.
 	 *
 	 * @see BluetoothDevice
 	 */
-	public void startDiscovery() throws Exception
+	public void startDiscovery(DiscoveryOptions options) throws Exception
 	{
 		try
 		{
+			_discoveryOptions 	= options;
+			_isDiscoveryMatched = false;
+			_isDiscoveryStopped = false;
+
+			synchronized(_discoveredDevices)
+			{
+				_discoveredDevices.clear();
+			}
+
+			if(options.cacheTtl == 0)
+			{
+				_discoveryCache.clear();
+			}
+
 			if(!_adapter.startDiscovery())
 			{
 				throw new Exception("Error starting discovery.");
@@ -281,7 +480,12 @@ public class BluetoothWrapper
 	{
 		try
 		{
-			if(!_adapter.cancelDiscovery())
+			_isDiscoveryStopped = true;
+
+			UuidFetcher fetcher = _uuidFetcher;
+			boolean wasFetching = fetcher != null && fetcher.cancel();
+
+			if(!_adapter.cancelDiscovery() && !wasFetching)
 			{
 				if(!_adapter.isDiscovering())
 				{
@@ -420,8 +624,11 @@ public class BluetoothWrapper
 		try
 		{
 			BluetoothDevice device = _adapter.getRemoteDevice(address);
+
+			_uuidRequests.put(device.getAddress(), Boolean.TRUE);
 			if(!device.fetchUuidsWithSdp())
 			{
+				_uuidRequests.remove(device.getAddress());
 				throw new Exception("Failed to start fetching UUIDs for the device at given address.");
 			}
 		}
@@ -432,73 +639,222 @@ public class BluetoothWrapper
 	}
 
 	/**
-	 * Check if there is an ongoing connection attempt.
+	 * Start loading the remembered connections in the background, so that connecting doesn't
+	 * read them on the calling thread.
+	 *
+	 * @param executor Executor that reads them.
+	 */
+	public void loadConnectionMemory(ExecutorService executor)
+	{
+		_memory.load(executor);
+	}
+
+	/**
+	 * Check if there is an ongoing connection attempt for any connection.
 	 *
 	 * @return True if a connection attempt is in progress.
 	 */
 	public boolean isConnecting()
 	{
-		if(_connectionAttempt != null)
+		for(String id : _connections.keySet())
 		{
-			return _connectionAttempt.getStatus() == AsyncTask.Status.RUNNING;
+			if(isConnecting(id))
+			{
+				return true;
+			}
 		}
 		return false;
 	}
 
+	/**
+	 * Check if there is an ongoing connection attempt, or a lost connection is being
+	 * reconnected.
+	 *
+	 * @param id ID of the connection.
+	 * @return True if a connection attempt is in progress.
+	 */
+	public boolean isConnecting(String id)
+	{
+		return getConnectionState(id) == EConnectionState.Connecting;
+	}
+
 	/**
 	 * Check if there is a connected socket.
 	 *
+	 * @param id ID of the connection.
 	 * @return A flag indicating whether there is a Connected Socket
 	 *
 	 * @see BluetoothSocket
 	 */
-	public boolean isConnected()
+	public boolean isConnected(String id)
 	{
-		if(_socket != null)
-		{
-			return true;
-		}
-		return false;
+		EConnectionState state = getConnectionState(id);
+		return state == EConnectionState.Connected || state == EConnectionState.Managed;
 	}
 
 
 	/**
 	 * Check if there is a connected socket that is managed (allows read/write operations).
+	 * A managed connection that is being reconnected counts as managed.
 	 *
+	 * @param id ID of the connection.
 	 * @return Flag indicating whether there is an active managed connection
 	 */
-	public boolean isConnectionManaged()
+	public boolean isConnectionManaged(String id)
 	{
-		if(_connectionManager != null)
+		Connection connection = _connections.get(id);
+		if(connection != null)
 		{
-			return _connectionManager.isAlive();
+			return connection._state.get() == EConnectionState.Managed || connection.isReconnecting();
 		}
 		return false;
 	}
 
 
 	/**
-	 * Attempts a connection to the specified address. Please note that this does not disconnect
-	 * any current connections, and you have to do that manually.
+	 * Get the state of a connection.
+	 *
+	 * @param id ID of the connection.
+	 * @return The state, Idle if there is no connection with the ID.
+	 */
+	public EConnectionState getConnectionState(String id)
+	{
+		Connection connection = _connections.get(id);
+		if(connection != null)
+		{
+			return connection._state.get();
+		}
+		return EConnectionState.Idle;
+	}
+
+
+	/**
+	 * Get the IDs of the current connections, including those still connecting.
+	 *
+	 * @return The IDs of the connections.
+	 */
+	public ArrayList<String> getConnectionIds()
+	{
+		return new ArrayList<String>(_connections.keySet());
+	}
+
+
+	/**
+	 * Get the ID of the connection used when no ID is given: the only connection, or if
+	 * there are several, the only one whose ID is the address of its device.
+	 *
+	 * @return The ID of the connection, or null if there is no such connection.
+	 */
+	public String getDefaultConnectionId()
+	{
+		String onlyId 		= null;
+		String addressId 	= null;
+		int count 			= 0;
+		int addressCount 	= 0;
+
+		for(Connection connection : _connections.values())
+		{
+			onlyId = connection._id;
+			count++;
+
+			if(connection._device != null && connection._id.equals(connection._device.getAddress()))
+			{
+				addressId = connection._id;
+				addressCount++;
+			}
+		}
+
+		if(count == 1)
+		{
+			return onlyId;
+		}
+		return addressCount == 1 ? addressId : null;
+	}
+
+
+	/**
+	 * Set how many connection attempts can be in progress at once. Further attempts wait
+	 * until a running one finishes.
+	 *
+	 * @param parallelism Number of concurrent connection attempts, at least 1.
+	 * @throws Exception If the number is invalid.
+	 */
+	public void setConnectParallelism(int parallelism) throws Exception
+	{
+		if(parallelism < 1)
+		{
+			throw new Exception("Connect parallelism has to be at least 1.");
+		}
+
+		synchronized(_connectExecutor)
+		{
+			// The maximum can never be below the core size
+			if(parallelism > _connectExecutor.getMaximumPoolSize())
+			{
+				_connectExecutor.setMaximumPoolSize(parallelism);
+				_connectExecutor.setCorePoolSize(parallelism);
+			}
+			else
+			{
+				_connectExecutor.setCorePoolSize(parallelism);
+				_connectExecutor.setMaximumPoolSize(parallelism);
+			}
+		}
+	}
+
+
+	/**
+	 * Attempts a connection to the specified address. Other connections are not affected.
+	 * Given several types of connection, they are raced against each other, and the type
+	 * that connected is reported with MSG_CONNECTION_ESTABLISHED.
+	 *
+	 * If a connection to the device has been made before with the same UUID, the type of
+	 * connection that worked is started first, provided it is one of the given types. The
+	 * RFCOMM channel that worked is used for the Hax type.
 	 *
-	 * @param address The address of the device you want to connect to.
-	 * @param uuidStr The UUID you want to connect with, or to.
-	 * @param connTypeStr The type of connection you want to attempt.
+	 * @param id 			ID for the connection, which can not be in use by another connection.
+	 * @param address 		The address of the device you want to connect to.
+	 * @param uuidStr 		The UUID you want to connect with, or to.
+	 * @param connTypeStrs 	The types of connection you want to attempt, in the order they are started.
+	 * @param timeout		Time in millis after which the attempt fails, 0 for no timeout.
+	 * @param stagger		Time in millis between starting the types of connection.
 	 * @throws Exception If there is an error starting the connection attempt.
 	 *
 	 * @see ConnectionAttempt
 	 * @see ConnectionManager
 	 */
-	public void connect(String address, String uuidStr, String connTypeStr) throws Exception
+	public void connect(String id, String address, String uuidStr, String[] connTypeStrs, int timeout, int stagger) throws Exception
 	{
 		try
 		{
-			BluetoothDevice device 		= _adapter.getRemoteDevice(address);
-			UUID uuid					= UUID.fromString(uuidStr);
-			EConnectionType connType 	= EConnectionType.valueOf(connTypeStr);
+			Connection connection = new Connection(id);
+
+			connection._device 		= _adapter.getRemoteDevice(address);
+			connection._uuid 		= UUID.fromString(uuidStr);
+			connection._connTypes 	= new EConnectionType[connTypeStrs.length];
+			connection._timeout 	= timeout;
+			connection._stagger 	= stagger;
+
+			for(int i = 0; i < connTypeStrs.length; i++)
+			{
+				connection._connTypes[i] = EConnectionType.valueOf(connTypeStrs[i]);
+			}
 
-			_connectionAttempt = new ConnectionAttempt(device, uuid, connType);
-			_connectionAttempt.execute();
+			connection._state.set(EConnectionState.Connecting);
+			if(_connections.putIfAbsent(id, connection) != null)
+			{
+				throw new Exception("There already is a connection with the ID " + id + ".");
+			}
+
+			try
+			{
+				startAttempt(connection);
+			}
+			catch(Exception e)
+			{
+				_connections.remove(id, connection);
+				throw e;
+			}
 		}
 		catch(Exception e)
 		{
@@ -508,33 +864,116 @@ public class BluetoothWrapper
 
 
 	/**
-	 * Attempts to disconnect the current connection. Closes the socket if it is open.
+	 * Check whether incoming connections are being listened for.
+	 *
+	 * @return True if there is a server accepting connections.
+	 */
+	public synchronized boolean isListening()
+	{
+		return _server != null && _server.isAlive();
+	}
+
+
+	/**
+	 * Start listening for incoming RFCOMM connections. A thread of its own accepts them,
+	 * and registers each as a connection with the address of the remote device as its ID.
+	 * MSG_CONNECTION_ACCEPTED is sent for every accepted connection, which can then be
+	 * managed like one that was connected to. Clients beyond the maximum are closed right
+	 * after they are accepted.
+	 *
+	 * @param name			Service name of the SDP record.
+	 * @param uuidStr		UUID of the SDP record.
+	 * @param isSecure		False to accept insecure (unauthenticated) connections.
+	 * @param maxClients	How many accepted connections can be open at once.
+	 * @throws Exception If already listening, or there is an error creating the server socket.
+	 *
+	 * @see Server
+	 */
+	public synchronized void startListening(String name, String uuidStr, boolean isSecure, int maxClients) throws Exception
+	{
+		if(isListening())
+		{
+			throw new Exception("Already listening for connections.");
+		}
+		if(maxClients < 1)
+		{
+			throw new Exception("There has to be room for at least one client.");
+		}
+
+		UUID uuid = UUID.fromString(uuidStr);
+		BluetoothServerSocket serverSocket = isSecure
+			? _adapter.listenUsingRfcommWithServiceRecord(name, uuid)
+			: _adapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
+
+		_server = new Server(serverSocket, maxClients);
+		_server.start();
+	}
+
+
+	/**
+	 * Stop listening for incoming connections. Connections already accepted stay open.
+	 *
+	 * @throws Exception If not listening.
+	 */
+	public synchronized void stopListening() throws Exception
+	{
+		if(!isListening())
+		{
+			throw new Exception("Not listening for connections.");
+		}
+
+		_server.kill();
+		_server = null;
+	}
+
+
+	/**
+	 * Attempts to disconnect the given connection. Closes the socket if it is open.
 	 *
+	 * @param id ID of the connection.
 	 * @throws Exception If there is an error disconnecting (no connection to close).
 	 */
-	public void disconnect() throws Exception
+	public void disconnect(String id) throws Exception
 	{
+		Connection connection = _connections.remove(id);
+
 		try
 		{
-			if(isConnecting() || isConnected())
+			if(connection != null)
 			{
-				if(_connectionAttempt != null)
+				// Whatever else is going on with the connection, its next transition fails
+				EConnectionState state = connection._state.getAndSet(EConnectionState.Closing);
+
+				ConnectionAttempt attempt = connection._connectionAttempt;
+				if(attempt != null)
 				{
-					if(_connectionAttempt.getStatus() != AsyncTask.Status.FINISHED)
-					{
-						_connectionAttempt.cancel(true);
-					}
+					attempt.cancel(null);
+				}
+
+				ScheduledFuture<?> reconnectFuture = connection._reconnectFuture;
+				if(reconnectFuture != null)
+				{
+					reconnectFuture.cancel(false);
 				}
 
-				if(_connectionManager != null)
+				ConnectionManager manager = connection._connectionManager;
+				if(manager != null)
 				{
-					if(_connectionManager.isAlive())
+					if(state == EConnectionState.Managed)
 					{
-						_connectionManager.kill();
+						manager.kill();
+					}
+					else if(state == EConnectionState.Connecting)
+					{
+						manager.failWrites("The connection was disconnected.");
 					}
 				}
 
-				_handler.obtainMessage(MSG_CONNECTION_STOPPED).sendToTarget();
+				// Already closing after it was lost, which is reported instead
+				if(state != EConnectionState.Closing)
+				{
+					sendConnectionMessage(MSG_CONNECTION_STOPPED, id, null);
+				}
 			}
 			else
 			{
@@ -549,13 +988,15 @@ public class BluetoothWrapper
 		{
 			try
 			{
-				if(_socket != null)
+				SocketReader reader = connection != null ? connection._reader : null;
+				if(reader != null)
 				{
-					synchronized(_socket)
-					{
-						_socket.close();
-                        _socket = null;
-					}
+					reader.release();
+				}
+
+				if(connection != null && connection._socket != null)
+				{
+					connection._socket.close();
 				}
 			}
 			catch(IOException ioe)
@@ -568,24 +1009,74 @@ public class BluetoothWrapper
 
 
 	/**
-	 * Starts a thread which manages the connected socket.
+	 * Starts a thread which manages the connected socket. Reads can optionally be gathered
+	 * into batches, or split into frames that end in a delimiter, are of a fixed size or
+	 * start with their length. The read data is held in a bounded ReadQueue until it is
+	 * delivered. Writes are held in a bounded WriteQueue until a thread of their own has
+	 * written them.
 	 *
+	 * Given reconnect options, a lost connection is reconnected with the parameters it was
+	 * connected with, and managed again with the same options. MSG_CONNECTION_RECONNECTING
+	 * is sent before every attempt and MSG_CONNECTION_RECONNECTED once it is back. Writes
+	 * made in between wait in the WriteQueue. MSG_CONNECTION_LOST is only sent once every
+	 * attempt has failed.
+	 *
+	 * @param id				ID of the connection.
+	 * @param readOptions		How the read data is delivered.
+	 * @param writeOptions		How data is written.
+	 * @param reconnectOptions	How a lost connection is reconnected, null to not reconnect it.
+	 * 							Accepted connections can not be reconnected.
+	 * @param readListener		Receives the read data, also after the connection is reconnected.
 	 * @throws Exception If there is an error starting the managed connection.
 	 *
 	 * @see ConnectionManager
+	 * @see ReadOptions
+	 * @see WriteOptions
+	 * @see ReconnectOptions
 	 */
-	public void startConnectionManager() throws Exception
+	public void startConnectionManager(String id, ReadOptions readOptions, WriteOptions writeOptions,
+		ReconnectOptions reconnectOptions, ReadListener readListener) throws Exception
 	{
 		try
 		{
-			if(_socket == null)
+			Connection connection = _connections.get(id);
+
+			if(connection == null)
+			{
+				throw new Exception("There is no socket.");
+			}
+			else if(reconnectOptions != null && connection._connTypes == null)
+			{
+				throw new Exception("An accepted connection can not be reconnected.");
+			}
+			else if(!connection._state.compareAndSet(EConnectionState.Connected, EConnectionState.Managed))
 			{
+				if(connection._state.get() == EConnectionState.Managed)
+				{
+					throw new Exception("The connection is already managed.");
+				}
 				throw new Exception("There is no socket.");
 			}
 			else
 			{
-				_connectionManager = new ConnectionManager(_socket);
-				_connectionManager.start();
+				connection._readOptions 		= readOptions;
+				connection._writeOptions 		= writeOptions;
+				connection._reconnectOptions 	= reconnectOptions;
+				connection._readListener 		= readListener;
+
+				ConnectionManager manager;
+				try
+				{
+					manager = new ConnectionManager(connection, null);
+				}
+				catch(IOException e)
+				{
+					connection._state.compareAndSet(EConnectionState.Managed, EConnectionState.Connected);
+					throw e;
+				}
+
+				connection._connectionManager = manager;
+				manager.start();
 			}
 		}
 		catch(Exception e)
@@ -596,19 +1087,28 @@ public class BluetoothWrapper
 
 
 	/**
-	 * Stops the thread managing a connected socket.
+	 * Stops the thread managing a connected socket. Returns once the data read so far has
+	 * been delivered, or after a short deadline. A connection that is being reconnected
+	 * has no socket to keep, so it is disconnected instead.
 	 *
+	 * @param id ID of the connection.
 	 * @throws Exception If there is a problem stopping the thread (it doesn't exist).
 	 */
-	public void stopConnectionManager() throws Exception
+	public void stopConnectionManager(String id) throws Exception
 	{
 		try
 		{
-			if(_connectionManager != null)
+			Connection connection = _connections.get(id);
+
+			if(connection != null && connection._connectionManager != null)
 			{
-				if(_connectionManager.isAlive())
+				if(connection._state.compareAndSet(EConnectionState.Managed, EConnectionState.Connected))
+				{
+					connection._connectionManager.shutdown();
+				}
+				else if(connection.isReconnecting())
 				{
-					_connectionManager.kill();
+					disconnect(id);
 				}
 				else
 				{
@@ -628,26 +1128,34 @@ public class BluetoothWrapper
 
 
 	/**
-	 * Writes data to the managed connection.
+	 * Queues data to be written to the managed connection. Returns right away, the listener
+	 * is told when the data has been written. While the connection is being reconnected,
+	 * the data waits until it is back.
 	 *
-	 * @param data The data you want to write. Will be converted into a byte array (byte[]).
-	 * @throws Exception If there is an error writing the data.
+	 * @param id		ID of the connection.
+	 * @param bytes		The data you want to write.
+	 * @param isFlush	True to write the data right away, even if writes are being gathered.
+	 * @param listener	Told when the data has been written, or if writing it failed.
+	 * @return False if the data was refused because too much data is already waiting to be written.
+	 * @throws Exception If there is no managed connection.
 	 */
-	public void write(byte[] bytes) throws Exception
+	public boolean write(String id, byte[] bytes, boolean isFlush, WriteListener listener) throws Exception
 	{
 		try
 		{
-			if(_connectionManager == null)
+			Connection connection = _connections.get(id);
+
+			if(connection == null || connection._connectionManager == null)
 			{
 				throw new Exception("There is no managed connection to write to.");
 			}
-			else if(!_connectionManager.isAlive())
+			else if(connection._state.get() != EConnectionState.Managed && !connection.isReconnecting())
 			{
 				throw new Exception("There is no active managed connection to write to.");
 			}
 			else
 			{
-				_connectionManager.write(bytes);
+				return connection._connectionManager.write(bytes, isFlush, listener);
 			}
 		}
 		catch(Exception e)
@@ -658,17 +1166,275 @@ public class BluetoothWrapper
 
 
 	/**
-	 * Receiver registered for various Bluetooth based events.
+	 * Get the number of bytes the managed connection has dropped because they were read
+	 * faster than they could be delivered.
+	 *
+	 * @param id ID of the connection.
+	 * @return Number of dropped bytes, 0 if there is no managed connection.
 	 */
-	private final BroadcastReceiver _receiver = new BroadcastReceiver()
+	public long getDroppedBytes(String id)
 	{
-		@Override
-		public void onReceive(Context ctx, Intent intent)
+		Connection connection = _connections.get(id);
+		if(connection != null && connection._connectionManager != null)
 		{
-			String action = intent.getAction();
+			return connection._connectionManager.getDroppedBytes();
+		}
+		return 0;
+	}
 
-			if(BluetoothAdapter.ACTION_CONNECTION_STATE_CHANGED.equals(action))
-			{
+
+	/**
+	 * Start an attempt to connect with the parameters of a connection. If a connection to
+	 * the device has been made before with the same UUID, the type of connection that
+	 * worked is started first.
+	 *
+	 * @param connection The connection.
+	 * @throws Exception If there is an error starting the attempt.
+	 */
+	private void startAttempt(Connection connection) throws Exception
+	{
+		EConnectionType[] connTypes = connection._connTypes.clone();
+		int channel 				= HAX_CHANNEL;
+
+		ConnectionMemory.Entry remembered = _memory.get(connection._device.getAddress());
+		if(remembered != null && remembered.uuid.equals(connection._uuid))
+		{
+			moveFirst(connTypes, remembered.connType);
+			if(remembered.channel > 0)
+			{
+				channel = remembered.channel;
+			}
+		}
+
+		ConnectionAttempt attempt = new ConnectionAttempt(connection, connection._device,
+			connection._uuid, connTypes, channel, connection._stagger);
+
+		connection._connectionAttempt = attempt;
+		attempt.start(connection._timeout);
+
+		// Disconnected meanwhile, and the attempt may have been set too late to be cancelled
+		if(connection._state.get() != EConnectionState.Connecting)
+		{
+			attempt.cancel(null);
+		}
+	}
+
+	/**
+	 * Schedule an attempt to reconnect a lost managed connection, or give the connection up
+	 * if it has run out of attempts. Does nothing but fail the waiting writes if the
+	 * connection has been disconnected.
+	 *
+	 * @param connection	The connection.
+	 * @param attempt		Number of the attempt, starting from 1.
+	 * @param error			Why the connection was lost, or why the previous attempt failed.
+	 */
+	private void scheduleReconnect(final Connection connection, int attempt, String error)
+	{
+		ReconnectOptions options = connection._reconnectOptions;
+
+		if(attempt > options.maxAttempts)
+		{
+			if(connection._state.compareAndSet(EConnectionState.Connecting, EConnectionState.Closing))
+			{
+				_connections.remove(connection._id, connection);
+				connection._connectionManager.failWrites("The connection was lost.");
+				sendConnectionMessage(MSG_CONNECTION_LOST, connection._id, "Failed to reconnect. " + error);
+			}
+			return;
+		}
+
+		// Exponential backoff, randomized between half of the delay and all of it
+		long delay = Math.min((long)options.initialDelay << Math.min(attempt - 1, 30), options.maxDelay);
+		delay = delay / 2 + (long)(_random.nextDouble() * (delay - delay / 2));
+
+		if(connection._state.get() != EConnectionState.Connecting)
+		{
+			connection._connectionManager.failWrites("The connection was disconnected.");
+			return;
+		}
+
+		connection._reconnectAttempt = attempt;
+		connection._reconnectFuture = _timeoutExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				attemptReconnect(connection);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+		// Disconnected meanwhile, and the future may have been set too late to be cancelled
+		if(connection._state.get() != EConnectionState.Connecting)
+		{
+			connection._reconnectFuture.cancel(false);
+			return;
+		}
+
+		Bundle bundle = new Bundle();
+		bundle.putString(DATA_CONNECTION_ID, connection._id);
+		bundle.putString(DATA_ERROR, error);
+		bundle.putInt(DATA_RECONNECT_ATTEMPT, attempt);
+		bundle.putInt(DATA_RECONNECT_DELAY, (int)delay);
+
+		Message msg = _handler.obtainMessage(MSG_CONNECTION_RECONNECTING);
+		msg.setData(bundle);
+		msg.sendToTarget();
+	}
+
+	private void attemptReconnect(Connection connection)
+	{
+		if(connection._state.get() != EConnectionState.Connecting)
+		{
+			return;
+		}
+
+		try
+		{
+			startAttempt(connection);
+		}
+		catch(Exception e)
+		{
+			scheduleReconnect(connection, connection._reconnectAttempt + 1, e.getMessage());
+		}
+	}
+
+	/**
+	 * Manage a reconnected connection again, with the options and the WriteQueue of the
+	 * ConnectionManager that lost it.
+	 *
+	 * @param connection	The connection, with the new socket.
+	 * @param connType		Type of connection that connected.
+	 */
+	private void reconnected(Connection connection, EConnectionType connType)
+	{
+		ConnectionManager manager;
+
+		try
+		{
+			// Shares the WriteQueue, so writes can go to either one until the transition
+			manager = new ConnectionManager(connection, connection._connectionManager._writeQueue);
+			connection._connectionManager = manager;
+		}
+		catch(IOException e)
+		{
+			close(connection._socket);
+			scheduleReconnect(connection, connection._reconnectAttempt + 1,
+				"Failed to manage the reconnected socket. " + e.getMessage());
+			return;
+		}
+
+		if(!connection._state.compareAndSet(EConnectionState.Connecting, EConnectionState.Managed))
+		{
+			close(connection._socket);
+			return;
+		}
+		connection._reconnectAttempt = 0;
+
+		Bundle bundle = new Bundle();
+		bundle.putString(DATA_CONNECTION_ID, connection._id);
+		bundle.putString(DATA_CONNECTION_TYPE, connType.name());
+
+		Message msg = _handler.obtainMessage(MSG_CONNECTION_RECONNECTED);
+		msg.setData(bundle);
+		msg.sendToTarget();
+
+		manager.start();
+	}
+
+	/**
+	 * Close a socket, logging a failure.
+	 *
+	 * @param socket The socket, can be null.
+	 */
+	private static void close(BluetoothSocket socket)
+	{
+		try
+		{
+			if(socket != null)
+			{
+				socket.close();
+			}
+		}
+		catch(IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to close socket. " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Move a connection type to the start of an array, keeping the order of the rest.
+	 *
+	 * @param connTypes	The array.
+	 * @param connType	The type to move, nothing is done if it is not in the array.
+	 */
+	private static void moveFirst(EConnectionType[] connTypes, EConnectionType connType)
+	{
+		for(int i = 0; i < connTypes.length; i++)
+		{
+			if(connTypes[i] == connType)
+			{
+				System.arraycopy(connTypes, 0, connTypes, 1, i);
+				connTypes[0] = connType;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get the RFCOMM channel of a connected socket. There is no public API for this, so the
+	 * private field of BluetoothSocket is read.
+	 *
+	 * @param socket The socket.
+	 * @return The channel, or -1 if it can't be read.
+	 */
+	private static int getChannel(BluetoothSocket socket)
+	{
+		try
+		{
+			Field port = BluetoothSocket.class.getDeclaredField("mPort");
+			port.setAccessible(true);
+			return port.getInt(socket);
+		}
+		catch(Exception e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Send a message about a connection to the Handler.
+	 *
+	 * @param what	The message code.
+	 * @param id	ID of the connection.
+	 * @param error	Description of an error, or null.
+	 */
+	private void sendConnectionMessage(int what, String id, String error)
+	{
+		Bundle bundle = new Bundle();
+		bundle.putString(DATA_CONNECTION_ID, id);
+		if(error != null)
+		{
+			bundle.putString(DATA_ERROR, error);
+		}
+
+		Message msg = _handler.obtainMessage(what);
+		msg.setData(bundle);
+		msg.sendToTarget();
+	}
+
+
+	/**
+	 * Receiver registered for various Bluetooth based events.
+	 */
+	private final BroadcastReceiver _receiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive(Context ctx, Intent intent)
+		{
+			String action = intent.getAction();
+
+			if(BluetoothAdapter.ACTION_CONNECTION_STATE_CHANGED.equals(action))
+			{
 				int connState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, 0);
 				if(connState == BluetoothAdapter.STATE_TURNING_OFF || connState == BluetoothAdapter.STATE_OFF)
 				{
@@ -707,21 +1473,96 @@ public class BluetoothWrapper
 			}
 			else if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action))
 			{
+				DiscoveryOptions options = _discoveryOptions;
+
+				// A new discovery may have started already, its devices are not fetched yet
+				if(options != null && options.uuidConcurrency > 0 && options.connect == null
+					&& !_isDiscoveryStopped && !_adapter.isDiscovering())
+				{
+					ArrayList<BluetoothDevice> devices;
+					synchronized(_discoveredDevices)
+					{
+						devices = new ArrayList<BluetoothDevice>(_discoveredDevices.values());
+						_discoveredDevices.clear();
+					}
+
+					if(!devices.isEmpty())
+					{
+						// The discovery finishes once the UUIDs have been fetched
+						_uuidFetcher = new UuidFetcher(devices, options.uuidConcurrency, options.uuidTimeout);
+						_uuidFetcher.start();
+						return;
+					}
+				}
+
 				_handler.obtainMessage(MSG_DISCOVERY_FINISHED).sendToTarget();
 			}
 			else if(BluetoothDevice.ACTION_FOUND.equals(action))
 			{
 				try
 				{
-					BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+					BluetoothDevice device 	= intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+					String name 			= device.getName();
+					short rssi 				= intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DiscoveryCache.RSSI_UNKNOWN);
+
+					DiscoveryOptions options = _discoveryOptions;
+					if(options != null && options.filter != null)
+					{
+						BluetoothClass deviceClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+						if(!options.filter.matches(device, rssi, deviceClass))
+						{
+							return;
+						}
+					}
+
+					if(options != null && options.stopOnMatch)
+					{
+						if(_isDiscoveryMatched)
+						{
+							return;
+						}
+						_isDiscoveryMatched = true;
+						_adapter.cancelDiscovery();
+					}
+					// Devices are found over and over, report them only when they change
+					else if(options != null && options.cacheTtl > 0
+						&& !_discoveryCache.update(device.getAddress(), name, rssi, options.cacheTtl, options.rssiDelta))
+					{
+						return;
+					}
 
 					Bundle bundle = new Bundle();
-					bundle.putString(DATA_DEVICE_NAME, device.getName());
+					bundle.putString(DATA_DEVICE_NAME, name);
 					bundle.putString(DATA_DEVICE_ADDRESS, device.getAddress());
+					if(rssi != DiscoveryCache.RSSI_UNKNOWN)
+					{
+						bundle.putShort(DATA_DEVICE_RSSI, rssi);
+					}
 
 					Message msg = _handler.obtainMessage(MSG_DEVICE_FOUND);
 					msg.setData(bundle);
 					msg.sendToTarget();
+
+					if(options != null && options.uuidConcurrency > 0)
+					{
+						synchronized(_discoveredDevices)
+						{
+							_discoveredDevices.put(device.getAddress(), device);
+						}
+					}
+
+					if(options != null && options.stopOnMatch && options.connect != null)
+					{
+						DiscoveryOptions.Connect c = options.connect;
+						try
+						{
+							connect(c.id, device.getAddress(), c.uuid, c.connTypes, c.timeout, c.stagger);
+						}
+						catch(Exception e)
+						{
+							sendConnectionMessage(MSG_CONNECTION_FAILED, c.id, e.getMessage());
+						}
+					}
 				}
 				catch(Exception e)
 				{
@@ -730,191 +1571,1272 @@ public class BluetoothWrapper
 			}
 			else if(BluetoothDevice.ACTION_UUID.equals(action))
 			{
-				BluetoothDevice device 			= intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				Parcelable[] uuids 				= intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
-				ArrayList<String> uuidStrings 	= new ArrayList<String>();
+				BluetoothDevice device 	= intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				Parcelable[] uuids 		= intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
 
-				if(uuids != null)
+				// The same broadcast can answer both a requested fetch and the UUID fetcher
+				boolean isRequested = _uuidRequests.remove(device.getAddress()) != null;
+
+				UuidFetcher fetcher = _uuidFetcher;
+				boolean isFetched 	= fetcher != null && fetcher.fetched(device, uuids);
+
+				if(isRequested || !isFetched)
 				{
-					for(Parcelable uuid : uuids)
-					{
-						uuidStrings.add(uuid.toString());
-					}
+					sendUuids(MSG_UUIDS_FOUND, device, uuids);
 				}
+			}
+		}
+	};
 
-				Bundle bundle = new Bundle();
-				bundle.putString(DATA_DEVICE_NAME, device.getName());
-				bundle.putString(DATA_DEVICE_ADDRESS, device.getAddress());
-				bundle.putStringArrayList(DATA_UUIDS, uuidStrings);
+	/**
+	 * Send the UUIDs of a device to the Handler.
+	 *
+	 * @param what		Code of the Message.
+	 * @param device	The device.
+	 * @param uuids		UUIDs of the device, can be null.
+	 */
+	private void sendUuids(int what, BluetoothDevice device, Parcelable[] uuids)
+	{
+		ArrayList<String> uuidStrings = new ArrayList<String>();
 
-				Message msg = _handler.obtainMessage(MSG_UUIDS_FOUND);
-				msg.setData(bundle);
-				msg.sendToTarget();
+		if(uuids != null)
+		{
+			for(Parcelable uuid : uuids)
+			{
+				uuidStrings.add(uuid.toString());
 			}
 		}
-	};
+
+		Bundle bundle = new Bundle();
+		bundle.putString(DATA_DEVICE_NAME, device.getName());
+		bundle.putString(DATA_DEVICE_ADDRESS, device.getAddress());
+		bundle.putStringArrayList(DATA_UUIDS, uuidStrings);
+
+		Message msg = _handler.obtainMessage(what);
+		msg.setData(bundle);
+		msg.sendToTarget();
+	}
 
 	/**
-	 * Attempts a connection at the specified device. Sets the private field <b>_socket</b>
-	 * for BluetoothWrapper on successful connection attempt.
+	 * Fetches the UUIDs of the devices found by a discovery once the inquiry has finished,
+	 * a number of devices at a time. The UUIDs of each device are sent as soon as they
+	 * arrive, and the discovery is finished once every device has been fetched.
 	 *
-	 * @see AsyncTask
-	 * @see BluetoothWrapper
-	 * @see BluetoothSocket
+	 * A device whose UUIDs don't arrive in time, or whose fetch fails to start, is sent
+	 * with the UUIDs already known of it, so that one silent device doesn't hold up the rest.
 	 */
-	private class ConnectionAttempt extends AsyncTask<Void, Void, BluetoothSocket>
+	private class UuidFetcher
 	{
-		private static final String LOG_TAG = "[BluetoothService]ConnectTask";
+		private final ArrayDeque<BluetoothDevice> _queue;
+		private final int _concurrency;
+		private final int _timeout;
 
-		private final UUID 				_uuid;
-		private final BluetoothSocket 	_socket;
+		/**
+		 * Timeouts of the devices being fetched by their address.
+		 */
+		private final HashMap<String, ScheduledFuture<?>> _fetching = new HashMap<String, ScheduledFuture<?>>();
+
+		private boolean _isRunning = true;
+
+		public UuidFetcher(ArrayList<BluetoothDevice> devices, int concurrency, int timeout)
+		{
+			_queue 			= new ArrayDeque<BluetoothDevice>(devices);
+			_concurrency 	= concurrency;
+			_timeout 		= timeout;
+		}
+
+		public synchronized void start()
+		{
+			fetchNext();
+		}
 
-		private String _error;
+		public synchronized boolean isRunning()
+		{
+			return _isRunning;
+		}
 
 		/**
-		 * Constructor for ConnectionAttempt: creates a socket for the given device and other parameters.
+		 * Take the UUIDs broadcast for a device, if it is being fetched.
 		 *
-		 * @param device Target of this connection attempt
-		 * @param uuid UUID for creating the socket
-		 * @param connType Type of connection, eg. secure or insecure
-		 * @throws Exception If there is a problem creating the socket with given parameters.
+		 * @param device	The device.
+		 * @param uuids		UUIDs of the device, can be null.
+		 * @return True if the device was being fetched.
 		 */
-		public ConnectionAttempt(BluetoothDevice device, UUID uuid, EConnectionType connType) throws Exception
+		public synchronized boolean fetched(BluetoothDevice device, Parcelable[] uuids)
 		{
-			UUID 			tmpUuid 	= null;
-			BluetoothSocket tmpSocket 	= null;
-
-			try
-			{
-				if(uuid == null)
-				{
-					throw new Exception("No UUID given for ConnectionAttempt.");
-				}
-				else
-				{
-					tmpUuid = uuid;
-				}
-			}
-			catch(Exception e)
+			ScheduledFuture<?> timeout = _fetching.remove(device.getAddress());
+			if(timeout == null)
 			{
-				throw e;
+				return false;
 			}
 
-			_uuid = tmpUuid;
-
-			try
-			{
-				switch(connType)
-				{
-				case Secure:
-					tmpSocket = device.createRfcommSocketToServiceRecord(_uuid);
-					break;
+			timeout.cancel(false);
+			sendUuids(MSG_DEVICE_UUIDS_FETCHED, device, uuids);
+			fetchNext();
+			return true;
+		}
 
-				case Insecure:
-					tmpSocket = device.createInsecureRfcommSocketToServiceRecord(_uuid);
-					break;
+		/**
+		 * Stop fetching, nothing more is sent, not even the discovery finishing.
+		 *
+		 * @return True if the fetcher was running.
+		 */
+		public synchronized boolean cancel()
+		{
+			boolean wasRunning = _isRunning;
 
-				case Hax:
-					Method createSocket = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-			        tmpSocket = (BluetoothSocket)createSocket.invoke(device, Integer.valueOf(1));
-					break;
-				}
-			}
-			catch(Exception e)
+			_isRunning = false;
+			_queue.clear();
+			for(ScheduledFuture<?> timeout : _fetching.values())
 			{
-				throw e;
-			}
-			finally
-			{
-				this._socket = tmpSocket;
+				timeout.cancel(false);
 			}
+			_fetching.clear();
+
+			return wasRunning;
 		}
 
-		@Override
-		protected BluetoothSocket doInBackground(Void... params)
+		private synchronized void timedOut(BluetoothDevice device)
 		{
-			if(this._socket == null)
+			if(_fetching.remove(device.getAddress()) != null)
 			{
-				this._error = "Socket not created correctly.";
-				return null;
+				sendUuids(MSG_DEVICE_UUIDS_FETCHED, device, device.getUuids());
+				fetchNext();
 			}
+		}
 
-			try
-			{
-				_socket.connect();
-				return _socket;
-			}
-			catch(IOException eConnect)
+		private void fetchNext()
+		{
+			while(_isRunning && _fetching.size() < _concurrency && !_queue.isEmpty())
 			{
-				this._error = eConnect.getMessage();
+				final BluetoothDevice device = _queue.removeFirst();
 
-				try
+				if(!device.fetchUuidsWithSdp())
 				{
-					_socket.close();
+					sendUuids(MSG_DEVICE_UUIDS_FETCHED, device, device.getUuids());
+					continue;
 				}
-				catch(IOException eClose)
-				{
-					this._error += " " + eClose.getMessage();
-					Log.e(LOG_TAG, "Failed to close socket. " + eClose.getMessage());
-				}
-				return null;
-			}
-		}
 
-		@Override
-		protected void onPostExecute(BluetoothSocket resultingSocket)
-		{
-			if(resultingSocket == null)
-			{
-				Bundle bundle = new Bundle();
-				bundle.putString(DATA_ERROR, this._error);
-
-				Message msg = _handler.obtainMessage(MSG_CONNECTION_FAILED);
-				msg.setData(bundle);
-				msg.sendToTarget();
-			}
-			else
-			{
-				if(BluetoothWrapper.this._socket != null)
+				_fetching.put(device.getAddress(), _timeoutExecutor.schedule(new Runnable()
 				{
-					synchronized(BluetoothWrapper.this._socket)
+					@Override
+					public void run()
 					{
-						BluetoothWrapper.this._socket = resultingSocket;
+						timedOut(device);
 					}
-				}
-				else
-				{
-					BluetoothWrapper.this._socket = resultingSocket;
-				}
-
-				_handler.obtainMessage(MSG_CONNECTION_ESTABLISHED).sendToTarget();
+				}, _timeout, TimeUnit.MILLISECONDS));
 			}
-		}
+
+			if(_isRunning && _fetching.isEmpty() && _queue.isEmpty())
+			{
+				_isRunning = false;
+				_handler.obtainMessage(MSG_DISCOVERY_FINISHED).sendToTarget();
+			}
+		}
+	}
+
+	/**
+	 * A single connection: its state, the socket, the attempt to connect it and the thread
+	 * managing it. Also keeps the parameters it was connected and managed with, for
+	 * reconnecting it.
+	 *
+	 * Every change of the state is a compare-and-set transition. Whoever makes a transition
+	 * acts on it, eg. closes the socket and reports the connection lost, and whoever fails
+	 * to make one backs off. The socket is set before the transition to Connected or
+	 * Managed, and is not replaced while the connection is in either.
+	 */
+	private class Connection
+	{
+		private final String _id;
+
+		private final AtomicReference<EConnectionState> _state =
+			new AtomicReference<EConnectionState>(EConnectionState.Idle);
+
+		/**
+		 * Connected socket, which stays after ConnectionManager is stopped, so that the
+		 * connection itself is retained.
+		 */
+		private volatile BluetoothSocket	_socket;
+
+		/**
+		 * Thread for attempting the connection. When successful, initializes a connected
+		 * socket to the <b>_socket</b> member.
+		 */
+		private volatile ConnectionAttempt	_connectionAttempt;
+
+		/**
+		 * Thread for managing the active connection. Requires a connected socket to perform
+		 * read/write operations.
+		 */
+		private volatile ConnectionManager 	_connectionManager;
+
+		private BluetoothDevice 	_device;
+		private UUID 				_uuid;
+
+		/**
+		 * Types of connection to attempt, null if the connection was accepted.
+		 */
+		private EConnectionType[] 	_connTypes;
+		private int 				_timeout;
+		private int 				_stagger;
+
+		private ReadOptions 		_readOptions;
+		private WriteOptions 		_writeOptions;
+		private ReadListener 		_readListener;
+
+		/**
+		 * How the connection is reconnected when it is lost, null if it isn't.
+		 */
+		private ReconnectOptions 	_reconnectOptions;
+
+		/**
+		 * Thread reading the socket, which outlives the ConnectionManagers of the socket.
+		 * Null until the socket is first managed.
+		 */
+		private volatile SocketReader _reader;
+
+		/**
+		 * Number of the reconnect attempt in progress, 0 when the connection isn't being
+		 * reconnected.
+		 */
+		private volatile int 				_reconnectAttempt;
+		private volatile ScheduledFuture<?> _reconnectFuture;
+
+		public Connection(String id)
+		{
+			_id = id;
+		}
+
+		/**
+		 * Check whether the connection was lost while managed, and is being reconnected.
+		 *
+		 * @return True while reconnecting.
+		 */
+		public boolean isReconnecting()
+		{
+			return _state.get() == EConnectionState.Connecting && _connectionManager != null;
+		}
+	}
+
+	/**
+	 * Attempts a connection at the specified device. Sets the private field <b>_socket</b>
+	 * of the Connection on successful connection attempt. Runs on the connect executor, and
+	 * can be cancelled or timed out at any point: the sockets are then closed, which also
+	 * unblocks <b>BluetoothSocket.connect()</b>. Exactly one outcome is reported.
+	 *
+	 * Given several connection types, the attempt races them: a socket is created for every
+	 * type, and they are started in the given order, each one a stagger delay after the
+	 * previous, or right away when the previous one fails. The first socket that connects
+	 * is kept and the rest are closed. The attempt fails once every socket has failed.
+	 *
+	 * @see BluetoothWrapper
+	 * @see BluetoothSocket
+	 */
+	private class ConnectionAttempt
+	{
+		private static final String LOG_TAG = "[BluetoothWrapper]ConnectionAttempt";
+
+		private final Connection	_connection;
+		private final String 		_address;
+		private final UUID 			_uuid;
+		private final Candidate[] 	_candidates;
+		private final int 			_stagger;
+
+		/**
+		 * Set by whoever decides the outcome first: success, failure or cancellation.
+		 */
+		private final AtomicBoolean _isFinished = new AtomicBoolean();
+
+		/**
+		 * Index of the next candidate to start, and the number of candidates that have failed.
+		 */
+		private final AtomicInteger _started 	= new AtomicInteger();
+		private final AtomicInteger _failed 	= new AtomicInteger();
+
+		private final StringBuilder _errors = new StringBuilder();
+
+		private volatile ScheduledFuture<?> _timeoutFuture;
+
+		/**
+		 * Timer starting the candidate at _staggerIndex, guarded by the attempt.
+		 */
+		private ScheduledFuture<?> 	_staggerFuture;
+		private int 				_staggerIndex;
+
+		/**
+		 * Constructor for ConnectionAttempt: creates a socket for every connection type.
+		 *
+		 * @param connection The connection this attempt is for
+		 * @param device Target of this connection attempt
+		 * @param uuid UUID for creating the sockets
+		 * @param connTypes Types of connection to race, eg. secure or insecure, at least one
+		 * @param channel RFCOMM channel of the Hax connection type
+		 * @param stagger Time in millis between starting the connection types
+		 * @throws Exception If there is a problem creating the sockets with given parameters.
+		 */
+		public ConnectionAttempt(Connection connection, BluetoothDevice device, UUID uuid,
+			EConnectionType[] connTypes, int channel, int stagger) throws Exception
+		{
+			if(uuid == null)
+			{
+				throw new Exception("No UUID given for ConnectionAttempt.");
+			}
+			if(connTypes.length == 0)
+			{
+				throw new Exception("No connection type given for ConnectionAttempt.");
+			}
+
+			_connection = connection;
+			_address 	= device.getAddress();
+			_uuid 		= uuid;
+			_stagger 	= stagger;
+			_candidates = new Candidate[connTypes.length];
+
+			try
+			{
+				for(int i = 0; i < connTypes.length; i++)
+				{
+					_candidates[i] = new Candidate(connTypes[i], createSocket(device, uuid, connTypes[i], channel));
+				}
+			}
+			catch(Exception e)
+			{
+				closeAll();
+				throw e;
+			}
+		}
+
+		private BluetoothSocket createSocket(BluetoothDevice device, UUID uuid, EConnectionType connType, int channel) throws Exception
+		{
+			switch(connType)
+			{
+			case Secure:
+				return device.createRfcommSocketToServiceRecord(uuid);
+
+			case Insecure:
+				return device.createInsecureRfcommSocketToServiceRecord(uuid);
+
+			case Hax:
+				Method createSocket = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
+				return (BluetoothSocket)createSocket.invoke(device, Integer.valueOf(channel));
+			}
+			return null;
+		}
+
+		/**
+		 * Start the attempt with its first connection type.
+		 *
+		 * @param timeout Time in millis after which the attempt fails, 0 for no timeout.
+		 */
+		public void start(int timeout)
+		{
+			if(timeout > 0)
+			{
+				_timeoutFuture = _timeoutExecutor.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						cancel("Connection attempt timed out.");
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+
+			startNext();
+		}
+
+		/**
+		 * Check whether the attempt is still waiting or connecting.
+		 *
+		 * @return True until the attempt has an outcome.
+		 */
+		public boolean isRunning()
+		{
+			return !_isFinished.get();
+		}
+
+		/**
+		 * Cancel the attempt, closing its sockets. Does nothing if the attempt already has
+		 * an outcome.
+		 *
+		 * @param error Reported as the reason the attempt failed, or null to report nothing.
+		 */
+		public void cancel(String error)
+		{
+			if(!_isFinished.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			cancelTimers();
+			closeAll();
+
+			if(error != null)
+			{
+				failed(error);
+			}
+		}
+
+		/**
+		 * Start the next candidate, and schedule the one after it.
+		 */
+		private void startNext()
+		{
+			startCandidate(_started.getAndIncrement());
+		}
+
+		/**
+		 * Start the candidate a timer was scheduled for, unless a failure has already
+		 * started it.
+		 */
+		private void startScheduled(int index)
+		{
+			if(_started.compareAndSet(index, index + 1))
+			{
+				startCandidate(index);
+			}
+		}
+
+		private void startCandidate(int index)
+		{
+			if(!isRunning() || index >= _candidates.length)
+			{
+				return;
+			}
+
+			_candidates[index].start();
+
+			if(index + 1 < _candidates.length)
+			{
+				scheduleCandidate(index + 1);
+			}
+		}
+
+		/**
+		 * Schedule starting a candidate after the stagger delay, replacing the timer of an
+		 * earlier candidate.
+		 */
+		private synchronized void scheduleCandidate(final int index)
+		{
+			if(!isRunning() || index <= _staggerIndex)
+			{
+				return;
+			}
+
+			if(_staggerFuture != null)
+			{
+				_staggerFuture.cancel(false);
+			}
+
+			_staggerIndex 	= index;
+			_staggerFuture 	= _timeoutExecutor.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					startScheduled(index);
+				}
+			}, _stagger, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Called by a candidate that connected.
+		 */
+		private void connected(Candidate winner)
+		{
+			if(!_isFinished.compareAndSet(false, true))
+			{
+				winner.close();
+				return;
+			}
+
+			cancelTimers();
+			for(Candidate candidate : _candidates)
+			{
+				if(candidate != winner)
+				{
+					candidate.close();
+				}
+			}
+
+			if(_address != null)
+			{
+				_memory.put(_address, new ConnectionMemory.Entry(winner._connType, _uuid, getChannel(winner._socket)));
+			}
+
+			_connection._socket = winner._socket;
+
+			// A managed connection that was lost
+			if(_connection._connectionManager != null)
+			{
+				reconnected(_connection, winner._connType);
+				return;
+			}
+
+			if(!_connection._state.compareAndSet(EConnectionState.Connecting, EConnectionState.Connected))
+			{
+				// Disconnected meanwhile
+				winner.close();
+				return;
+			}
+
+			Bundle bundle = new Bundle();
+			bundle.putString(DATA_CONNECTION_ID, _connection._id);
+			bundle.putString(DATA_CONNECTION_TYPE, winner._connType.name());
+
+			Message msg = _handler.obtainMessage(MSG_CONNECTION_ESTABLISHED);
+			msg.setData(bundle);
+			msg.sendToTarget();
+		}
+
+		/**
+		 * Called by a candidate that failed to connect.
+		 */
+		private void candidateFailed(Candidate candidate, String error)
+		{
+			candidate.close();
+
+			synchronized(_errors)
+			{
+				if(_errors.length() > 0)
+				{
+					_errors.append(' ');
+				}
+				_errors.append(candidate._connType.name()).append(": ").append(error);
+			}
+
+			if(_failed.incrementAndGet() == _candidates.length)
+			{
+				if(_isFinished.compareAndSet(false, true))
+				{
+					cancelTimers();
+
+					synchronized(_errors)
+					{
+						failed(_errors.toString());
+					}
+				}
+			}
+			else
+			{
+				// No point in waiting for the stagger delay
+				startNext();
+			}
+		}
+
+		private void failed(String error)
+		{
+			if(_connection._connectionManager != null)
+			{
+				scheduleReconnect(_connection, _connection._reconnectAttempt + 1, error);
+				return;
+			}
+
+			if(!_connection._state.compareAndSet(EConnectionState.Connecting, EConnectionState.Idle))
+			{
+				return;
+			}
+
+			_connections.remove(_connection._id, _connection);
+			sendConnectionMessage(MSG_CONNECTION_FAILED, _connection._id, error);
+		}
+
+		private void cancelTimers()
+		{
+			ScheduledFuture<?> timeoutFuture = _timeoutFuture;
+			if(timeoutFuture != null)
+			{
+				timeoutFuture.cancel(false);
+			}
+
+			synchronized(this)
+			{
+				if(_staggerFuture != null)
+				{
+					_staggerFuture.cancel(false);
+				}
+			}
+		}
+
+		private void closeAll()
+		{
+			for(Candidate candidate : _candidates)
+			{
+				if(candidate != null)
+				{
+					candidate.close();
+				}
+			}
+		}
+
+		/**
+		 * A socket of a single connection type, connecting on the connect executor.
+		 */
+		private class Candidate implements Runnable
+		{
+			private final EConnectionType 	_connType;
+			private final BluetoothSocket 	_socket;
+
+			private volatile Future<?> _future;
+
+			public Candidate(EConnectionType connType, BluetoothSocket socket)
+			{
+				_connType 	= connType;
+				_socket 	= socket;
+			}
+
+			public void start()
+			{
+				_future = _connectExecutor.submit(this);
+			}
+
+			@Override
+			public void run()
+			{
+				if(!isRunning())
+				{
+					return;
+				}
+
+				if(_socket == null)
+				{
+					candidateFailed(this, "Socket not created correctly.");
+					return;
+				}
+
+				try
+				{
+					_socket.connect();
+				}
+				catch(IOException e)
+				{
+					candidateFailed(this, e.getMessage());
+					return;
+				}
+
+				connected(this);
+			}
+
+			public void close()
+			{
+				Future<?> future = _future;
+				if(future != null)
+				{
+					future.cancel(false);
+				}
+
+				try
+				{
+					if(_socket != null)
+					{
+						_socket.close();
+					}
+				}
+				catch(IOException e)
+				{
+					Log.e(LOG_TAG, "Failed to close socket. " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accepts incoming connections on a listening server socket, until killed or the server
+	 * socket fails. Every accepted socket is registered as a connection. The accepted
+	 * connections that are still open are counted against the maximum number of clients.
+	 *
+	 * @see BluetoothServerSocket
+	 */
+	private class Server extends Thread
+	{
+		private static final String LOG_TAG = "[BluetoothWrapper]Server";
+
+		private final BluetoothServerSocket _serverSocket;
+		private final int 					_maxClients;
+
+		/**
+		 * Accepted connections, including those that have since been closed.
+		 */
+		private final ArrayList<Connection> _clients = new ArrayList<Connection>();
+
+		private volatile boolean _isAlive;
+
+		public Server(BluetoothServerSocket serverSocket, int maxClients)
+		{
+			_serverSocket 	= serverSocket;
+			_maxClients 	= maxClients;
+			_isAlive 		= true;
+		}
+
+		@Override
+		public void run()
+		{
+			while(_isAlive)
+			{
+				BluetoothSocket socket;
+
+				try
+				{
+					socket = _serverSocket.accept();
+				}
+				catch(IOException e)
+				{
+					// When killed, the server socket is closed on purpose
+					if(_isAlive)
+					{
+						_isAlive = false;
+						close(_serverSocket);
+						Bundle bundle = new Bundle();
+						bundle.putString(DATA_ERROR, "Error accepting connections. " + e.getMessage());
+
+						Message msg = _handler.obtainMessage(MSG_LISTENING_STOPPED);
+						msg.setData(bundle);
+						msg.sendToTarget();
+					}
+					return;
+				}
+
+				accepted(socket);
+			}
+		}
+
+		private void accepted(BluetoothSocket socket)
+		{
+			BluetoothDevice device 	= socket.getRemoteDevice();
+			String id 				= device.getAddress();
+
+			for(Iterator<Connection> it = _clients.iterator(); it.hasNext();)
+			{
+				Connection client = it.next();
+				if(_connections.get(client._id) != client)
+				{
+					it.remove();
+				}
+			}
+
+			if(_clients.size() >= _maxClients)
+			{
+				Log.w(LOG_TAG, "Rejected " + id + ", there already are " + _clients.size() + " clients.");
+				close(socket);
+				return;
+			}
+
+			Connection connection 	= new Connection(id);
+			connection._device 		= device;
+			connection._socket 		= socket;
+			connection._state.set(EConnectionState.Connected);
+
+			if(_connections.putIfAbsent(id, connection) != null)
+			{
+				Log.w(LOG_TAG, "Rejected " + id + ", there already is a connection with the ID.");
+				close(socket);
+				return;
+			}
+			_clients.add(connection);
+
+			Bundle bundle = new Bundle();
+			bundle.putString(DATA_CONNECTION_ID, id);
+			bundle.putString(DATA_DEVICE_ADDRESS, id);
+			bundle.putString(DATA_DEVICE_NAME, device.getName());
+
+			Message msg = _handler.obtainMessage(MSG_CONNECTION_ACCEPTED);
+			msg.setData(bundle);
+			msg.sendToTarget();
+		}
+
+		/**
+		 * Stops accepting connections, closing the server socket.
+		 */
+		public void kill()
+		{
+			_isAlive = false;
+			close(_serverSocket);
+		}
+
+		private void close(Closeable closeable)
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch(IOException e)
+			{
+				Log.e(LOG_TAG, "Failed to close socket. " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Takes the data read by a ConnectionManager from its queue, and passes it to the
+	 * ReadListener of the manager. Runs until the queue is closed and empty.
+	 *
+	 * @see ReadQueue
+	 */
+	private class ReadDelivery extends Thread
+	{
+		private static final String LOG_TAG = "[BluetoothWrapper]ReadDelivery";
+
+		private final String 		_id;
+		private final ReadQueue 	_queue;
+		private final ReadListener 	_listener;
+
+		/**
+		 * Delivery of the previous manager of the socket, which may still be delivering what
+		 * was read before it was stopped, or null.
+		 */
+		private ReadDelivery _previous;
+
+		public ReadDelivery(String id, ReadQueue queue, ReadListener listener, ReadDelivery previous)
+		{
+			_id 		= id;
+			_queue 		= queue;
+			_listener 	= listener;
+			_previous 	= previous;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				// Its queue is closed, so it only has to deliver what is left
+				if(_previous != null)
+				{
+					_previous.join();
+					_previous = null;
+				}
+
+				BufferPool.Slab slab;
+
+				while((slab = _queue.take()) != null)
+				{
+					try
+					{
+						_listener.onRead(_id, slab);
+					}
+					catch(Exception e)
+					{
+						Log.e(LOG_TAG, "Failed to deliver read data. " + e.getMessage());
+					}
+					finally
+					{
+						slab.recycle();
+					}
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while waiting for read data.");
+			}
+		}
+	}
+
+	/**
+	 * Reads a socket for its ConnectionManagers. A blocking read of the socket can only be
+	 * interrupted by closing the socket, so the reader is not stopped with the manager. A
+	 * read that returns while no manager is attached is held for the next one, which
+	 * delivers it before anything read after it, and the reader doesn't read again until
+	 * then. There is thus only one reader of the socket, and a new manager never waits for
+	 * a read to return.
+	 *
+	 * Only one thread at a time delivers data to a manager, so that its ReadQueue has a single
+	 * producer. A manager detached while data is being delivered to it waits for the delivery
+	 * to finish before closing its queue, so that no data is put into a closed queue.
+	 */
+	private class SocketReader extends Thread
+	{
+		private static final String LOG_TAG = "[BluetoothWrapper]SocketReader";
+
+		private final BluetoothSocket 	_socket;
+		private final InputStream 		_input;
+
+		/**
+		 * Manager the data is delivered to, null if none is attached.
+		 */
+		private ConnectionManager _target;
+
+		/**
+		 * Manager data is being delivered to at the moment, null if none.
+		 */
+		private ConnectionManager _delivering;
+
+		/**
+		 * Data of a read that returned while no manager was attached, null if none.
+		 */
+		private byte[] _unread;
+
+		/**
+		 * Why reading failed, null while the socket can still be read.
+		 */
+		private Exception _error;
+
+		public SocketReader(BluetoothSocket socket, InputStream input)
+		{
+			_socket = socket;
+			_input 	= input;
+		}
+
+		@Override
+		public void run()
+		{
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+			while(true)
+			{
+				int bytes;
+				ConnectionManager target;
+
+				try
+				{
+					bytes = _input.read(buffer);
+					if(bytes < 0)
+					{
+						throw new IOException("End of stream.");
+					}
+				}
+				catch(Exception e)
+				{
+					synchronized(this)
+					{
+						_error 	= e;
+						target 	= _target;
+						_target = null;
+					}
+
+					if(target != null)
+					{
+						target.readFailed(e);
+					}
+					return;
+				}
+
+				synchronized(this)
+				{
+					// A manager may be delivering what was read before it attached
+					while(_delivering != null)
+					{
+						try
+						{
+							wait();
+						}
+						catch(InterruptedException e)
+						{
+							Log.e(LOG_TAG, "Interrupted while waiting for a delivery.");
+						}
+					}
+
+					target = _target;
+					if(target == null)
+					{
+						// Anything after this waits in the socket until a manager attaches
+						_unread = Arrays.copyOf(buffer, bytes);
+
+						while(_target == null && _error == null)
+						{
+							try
+							{
+								wait();
+							}
+							catch(InterruptedException e)
+							{
+								Log.e(LOG_TAG, "Interrupted while waiting for a manager.");
+							}
+						}
+
+						if(_error != null)
+						{
+							return;
+						}
+						continue;
+					}
+					_delivering = target;
+				}
+
+				deliver(target, buffer, bytes);
+			}
+		}
+
+		/**
+		 * Attach a manager, which gets all data read from now on. Whatever was read while no
+		 * manager was attached is delivered to it first, on the calling thread.
+		 *
+		 * @param manager The manager.
+		 * @return Why reading the socket failed, or null if it can be read.
+		 */
+		public Exception attach(ConnectionManager manager)
+		{
+			byte[] unread;
+
+			synchronized(this)
+			{
+				if(_error != null)
+				{
+					return _error;
+				}
+
+				if(getState() == Thread.State.NEW)
+				{
+					start();
+				}
+
+				while(_delivering != null)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						Log.e(LOG_TAG, "Interrupted while waiting for a delivery.");
+					}
+				}
+
+				_target = manager;
+				unread 	= _unread;
+				_unread = null;
+				notifyAll();
+
+				if(unread == null)
+				{
+					return null;
+				}
+				_delivering = manager;
+			}
+
+			deliver(manager, unread, unread.length);
+			return null;
+		}
+
+		/**
+		 * Detach a manager, if it is attached, so that data read from now on is held for the
+		 * next one. Doesn't wait for a delivery in progress.
+		 *
+		 * @param manager The manager.
+		 */
+		public synchronized void detach(ConnectionManager manager)
+		{
+			if(_target == manager)
+			{
+				_target = null;
+			}
+		}
+
+		/**
+		 * Wait until no data is being delivered to a detached manager.
+		 *
+		 * @param manager The manager.
+		 * @throws InterruptedException If the thread is interrupted while waiting.
+		 */
+		public synchronized void awaitDelivery(ConnectionManager manager) throws InterruptedException
+		{
+			while(_delivering == manager)
+			{
+				wait();
+			}
+		}
+
+		private void deliver(ConnectionManager target, byte[] buffer, int bytes)
+		{
+			try
+			{
+				target.received(buffer, bytes);
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while delivering read data.");
+			}
+			finally
+			{
+				synchronized(this)
+				{
+					_delivering = null;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * End the reader once the socket has been closed, in case it is waiting for a manager.
+		 */
+		public synchronized void release()
+		{
+			if(_error == null)
+			{
+				_error = new IOException("The socket was closed.");
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the data queued for a ConnectionManager to its output stream, and tells the
+	 * listener of every write how it went. Gathered writes are copied into one buffer and
+	 * written together. Runs until the queue is closed and empty. Waits for the writer of
+	 * a stopped ConnectionManager of the same socket to finish first.
+	 *
+	 * @see WriteQueue
+	 */
+	private class Writer extends Thread
+	{
+		private static final String LOG_TAG = "[BluetoothWrapper]Writer";
+
+		private final WriteQueue 	_queue;
+		private final OutputStream 	_output;
+
+		/**
+		 * Writer that was writing to the stream before this one, or null.
+		 */
+		private final Writer 		_previous;
+
+		/**
+		 * Gathered writes are copied here, has room for the gather size.
+		 */
+		private final byte[] _buffer;
+
+		public Writer(WriteQueue queue, OutputStream output, int gatherSize, Writer previous)
+		{
+			_queue 		= queue;
+			_output 	= output;
+			_buffer 	= new byte[gatherSize];
+			_previous 	= previous;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				if(_previous != null)
+				{
+					_previous.join();
+				}
+
+				ArrayList<WriteQueue.Write> writes = new ArrayList<WriteQueue.Write>();
+
+				while(_queue.take(writes))
+				{
+					try
+					{
+						if(writes.size() == 1)
+						{
+							_output.write(writes.get(0).data);
+						}
+						else
+						{
+							int length = 0;
+							for(WriteQueue.Write write : writes)
+							{
+								System.arraycopy(write.data, 0, _buffer, length, write.data.length);
+								length += write.data.length;
+							}
+							_output.write(_buffer, 0, length);
+						}
+						_output.flush();
+
+						for(WriteQueue.Write write : writes)
+						{
+							write.listener.onWritten();
+						}
+					}
+					catch(IOException e)
+					{
+						for(WriteQueue.Write write : writes)
+						{
+							write.listener.onWriteFailed("Error writing OutputStream. " + e.getMessage());
+						}
+					}
+
+					writes.clear();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while waiting for data to write.");
+			}
+		}
 	}
 
 	/**
-	 * Manages an active connection, allowing read and write operations.
+	 * Manages an active connection, allowing read and write operations. The socket is read
+	 * by its SocketReader, which the manager attaches to while it runs. Data read between
+	 * two managers of the socket is held by the reader for the next one, so none is lost.
+	 *
+	 * The manager has no thread of its own: the SocketReader puts the read data into its
+	 * queue and tells it when reading fails, its ReadDelivery delivers the data and its
+	 * Writer writes.
+	 *
+	 * @see SocketReader
 	 */
-	private class ConnectionManager extends Thread
+	private class ConnectionManager
 	{
 		private static final String LOG_TAG		= "[BluetoothWrapper]ConnectionManager";
-		private static final int BUFFER_SIZE 	= 1024;
 
+		/**
+		 * How many millis stopping waits at most for the threads to finish.
+		 */
+		private static final int STOP_TIMEOUT 	= 50;
+
+		private final Connection 		_connection;
 		private final BluetoothSocket 	_socket;
-		private final InputStream 		_input;
 		private final OutputStream 		_output;
 
-		private volatile boolean _isAlive;
+		/**
+		 * Reads the socket and passes the data to the manager while it is attached.
+		 */
+		private final SocketReader		_reader;
+
+		/**
+		 * Holds the read data until it is delivered.
+		 */
+		private final ReadQueue			_queue;
+
+		/**
+		 * Splits reads into frames, null if every read is delivered as is.
+		 */
+		private final ReadSink			_sink;
+
+		/**
+		 * Takes the read data from the queue and passes it to the ReadListener.
+		 */
+		private final ReadDelivery		_delivery;
+
+		/**
+		 * Holds the data to write until it is written.
+		 */
+		private final WriteQueue		_writeQueue;
+
+		/**
+		 * Takes the data to write from the queue and writes it to the output stream.
+		 */
+		private final Writer			_writer;
+
+		/**
+		 * Stopped ConnectionManager of the same socket, whose writer may still be writing and
+		 * whose delivery may still be delivering, or null.
+		 */
+		private final ConnectionManager	_previous;
+
+		/**
+		 * Set by whoever stops the manager first: kill, or the SocketReader when reading fails.
+		 */
+		private final AtomicBoolean _isStopped = new AtomicBoolean();
 
 		/**
 		 * Constructor for ConnectionManager, retrieves input and output streams from given socket.
+		 * The read and write options are those of the connection.
 		 *
-		 * @param socket A connected socket.
+		 * @param connection	A connection with a connected socket.
+		 * @param writeQueue	Queue of the ConnectionManager that lost the connection before it
+		 * 						was reconnected, null to create a new one.
 		 * @throws IOException If there is an error retrieving streams from the socket.
 		 */
-		public ConnectionManager(BluetoothSocket socket) throws IOException
+		public ConnectionManager(Connection connection, WriteQueue writeQueue) throws IOException
 		{
-			_socket				= socket;
+			ReadOptions options 		= connection._readOptions;
+			WriteOptions writeOptions 	= connection._writeOptions;
+
+			_connection			= connection;
+			_socket				= connection._socket;
 			InputStream input	= null;
 			OutputStream output = null;
 
@@ -928,91 +2850,281 @@ public class BluetoothWrapper
 				throw e;
 			}
 
-			_input 	= input;
 			_output = output;
 
-			_isAlive = true;
+			ConnectionManager previous = connection._connectionManager;
+			_previous = previous != null && previous._socket == _socket ? previous : null;
+
+			SocketReader reader = connection._reader;
+			if(reader == null || reader._socket != _socket)
+			{
+				reader = new SocketReader(_socket, input);
+				connection._reader = reader;
+			}
+			_reader = reader;
+
+			if(options.delimiter != null)
+			{
+				_queue 	= createQueue(options, options.maxFrameLength + options.delimiter.length, 0);
+				_sink 	= new DelimiterFramer(_queue, options.delimiter, options.maxFrameLength);
+			}
+			else if(options.frameSize > 0)
+			{
+				_queue 	= createQueue(options, options.frameSize, 0);
+				_sink 	= new LengthFramer(_queue, options.frameSize);
+			}
+			else if(options.lengthFieldSize > 0)
+			{
+				_queue 	= createQueue(options, options.maxFrameLength, 0);
+				_sink 	= new LengthFramer(_queue, options.maxFrameLength,
+					options.lengthFieldOffset, options.lengthFieldSize, options.isLittleEndian);
+			}
+			else
+			{
+				_queue 	= createQueue(options, READ_BUFFER_SIZE, options.batchSize);
+				_sink 	= null;
+			}
+
+			_delivery 	= new ReadDelivery(connection._id, _queue, connection._readListener,
+				_previous != null ? _previous._delivery : null);
+			_writeQueue = writeQueue != null ? writeQueue
+				: new WriteQueue(writeOptions.highWaterMark, writeOptions.gatherSize, writeOptions.gatherDelay);
+			_writer 	= new Writer(_writeQueue, _output, writeOptions.gatherSize,
+				_previous != null ? _previous._writer : null);
 		}
 
-		@Override
-		public void run()
+		private ReadQueue createQueue(ReadOptions options, int maxRecordLength, int batchSize)
 		{
-			int bytes;
-			byte[] buffer = new byte[BUFFER_SIZE];
+			return new ReadQueue(options.queueCapacity, maxRecordLength,
+				options.overflowPolicy, batchSize, options.batchDelay);
+		}
 
-			while(_isAlive)
+		/**
+		 * Start delivering, writing and getting the data read from the socket.
+		 */
+		public void start()
+		{
+			_delivery.start();
+			_writer.start();
+
+			Exception e = _reader.attach(this);
+			if(e != null)
 			{
-				try
-				{
-					bytes 		= _input.read(buffer);
-					byte[] data = new byte[bytes];
+				readFailed(e);
+			}
+		}
 
-					for(int i = 0; i < bytes; i++)
-					{
-						data[i] = buffer[i];
-					}
+		/**
+		 * Called by the SocketReader, which has detached the manager, when reading the
+		 * socket fails. Reconnects the connection, or reports it lost.
+		 *
+		 * @param e Why reading failed.
+		 */
+		private void readFailed(Exception e)
+		{
+			// Killed meanwhile, and already finished
+			if(!_isStopped.compareAndSet(false, true))
+			{
+				return;
+			}
+			detach();
 
-					Bundle bundle = new Bundle();
-					bundle.putByteArray(DATA_BYTES, data);
+			// When stopped or disconnected, the state has already changed
+			if(_connection._reconnectOptions != null
+				&& _connection._state.compareAndSet(EConnectionState.Managed, EConnectionState.Connecting))
+			{
+				// Keep the queued writes for the reconnected connection
+				finishReading();
+				close(_socket);
+				stopWriter();
 
-					Message msg = _handler.obtainMessage(MSG_READ);
-					msg.setData(bundle);
-					msg.sendToTarget();
-				}
-				catch(Exception e)
+				scheduleReconnect(_connection, 1, "Error reading InputStream. " + e.getMessage());
+			}
+			else
+			{
+				_writeQueue.close();
+				finishReading();
+
+				if(_connection._state.compareAndSet(EConnectionState.Managed, EConnectionState.Closing))
 				{
-					try
-					{
-						if(BluetoothWrapper.this._socket != null)
-						{
-							synchronized(BluetoothWrapper.this._socket)
-							{
-								BluetoothWrapper.this._socket.close();
-								BluetoothWrapper.this._socket = null;
-							}
-						}
-					}
-					catch(Exception ioe)
-					{
-						Log.e(LOG_TAG, "Failed to close socket after connection error." + ioe.getMessage());
-					}
+					connectionLost(e);
+				}
+			}
+		}
 
-					Bundle bundle = new Bundle();
-					bundle.putString(DATA_ERROR, "Error reading InputStream. " + e.getMessage());
+		/**
+		 * Detaches the manager from the SocketReader, and waits for a delivery to it that
+		 * is in progress, so that nothing is put into the read queue once it is closed.
+		 */
+		private void detach()
+		{
+			_reader.detach(this);
+			try
+			{
+				_reader.awaitDelivery(this);
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while waiting for read data.");
+			}
+		}
 
-					Message msg = _handler.obtainMessage(MSG_CONNECTION_LOST);
-					msg.setData(bundle);
-					msg.sendToTarget();
+		/**
+		 * Called by the SocketReader with the data read from the socket, only ever by one
+		 * thread at a time.
+		 */
+		private void received(byte[] buffer, int bytes) throws InterruptedException
+		{
+			if(_sink != null)
+			{
+				_sink.append(buffer, bytes);
+			}
+			else
+			{
+				_queue.put(buffer, 0, bytes);
+			}
+		}
 
-					break;
+		/**
+		 * Passes on anything held back by the ReadSink and closes the queue. The delivery
+		 * finishes once it has delivered what is left.
+		 */
+		private void closeReading()
+		{
+			try
+			{
+				if(_sink != null)
+				{
+					_sink.flush();
 				}
 			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while flushing read data.");
+			}
+			finally
+			{
+				_queue.close();
+			}
 		}
 
 		/**
-		 * Write given data to the output stream.
-		 *
-		 * @param bytes The data you wish to transmit to the output stream.
-		 * @throws IOException If there is an error writing to the output stream.
+		 * Closes the read queue and waits for the delivery to finish, so that all of the
+		 * read data is delivered before any following messages.
 		 */
-		public void write(byte[] bytes) throws IOException
+		private void finishReading()
 		{
+			closeReading();
+
 			try
 			{
-				_output.write(bytes);
+				_delivery.join();
 			}
-			catch(IOException e)
+			catch(InterruptedException e)
 			{
-				throw e;
+				Log.e(LOG_TAG, "Interrupted while finishing read data delivery.");
+			}
+		}
+
+		/**
+		 * Stops the writer without closing the write queue, leaving the writes it hasn't
+		 * taken in the queue. The socket has to be closed first, so that a write in progress
+		 * fails instead of blocking.
+		 */
+		private void stopWriter()
+		{
+			_writer.interrupt();
+
+			try
+			{
+				_writer.join();
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while stopping the writer.");
 			}
 		}
 
 		/**
-		 * Flags the thread so that it will not continue execution, essentially killing it.
+		 * Closes the socket after a read error and notifies the Handler of the lost connection.
+		 *
+		 * @param e The error that caused the connection to be lost.
+		 */
+		private void connectionLost(Exception e)
+		{
+			close(_socket);
+
+			_connections.remove(_connection._id, _connection);
+			sendConnectionMessage(MSG_CONNECTION_LOST, _connection._id, "Error reading InputStream. " + e.getMessage());
+		}
+
+		/**
+		 * Get the number of read bytes dropped because they couldn't be delivered fast enough.
+		 *
+		 * @return Number of dropped bytes.
+		 */
+		public long getDroppedBytes()
+		{
+			return _queue.getDroppedBytes();
+		}
+
+		/**
+		 * Queue given data to be written to the output stream.
+		 *
+		 * @param bytes		The data you wish to transmit to the output stream.
+		 * @param isFlush	True to write the data right away, even if writes are being gathered.
+		 * @param listener	Told when the data has been written, or if writing it failed.
+		 * @return False if the write queue is too full to take the data.
+		 */
+		public boolean write(byte[] bytes, boolean isFlush, WriteListener listener)
+		{
+			return _writeQueue.offer(bytes, isFlush, listener);
+		}
+
+		/**
+		 * Tells the listeners of the writes still waiting that they failed. Used when the
+		 * connection is given up while it is being reconnected.
+		 *
+		 * @param error Why the writes failed.
+		 */
+		public void failWrites(String error)
+		{
+			_writeQueue.fail(error);
+		}
+
+		/**
+		 * Stops the manager. Data read from now on is held for the next ConnectionManager of
+		 * the socket. Data already read, or already queued for writing, is still delivered
+		 * or written, after which the delivery and the writer finish.
 		 */
 		public void kill()
 		{
-			_isAlive = false;
+			if(!_isStopped.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			detach();
+			_writeQueue.close();
+			closeReading();
+		}
+
+		/**
+		 * Kills the manager, and waits for the read data to be delivered, for a short while
+		 * at most.
+		 */
+		public void shutdown()
+		{
+			kill();
+
+			try
+			{
+				_delivery.join(STOP_TIMEOUT);
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(LOG_TAG, "Interrupted while stopping.");
+			}
 		}
 	}
 }
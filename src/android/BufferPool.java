@@ -0,0 +1,82 @@
+package org.apache.cordova.bluetooth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * Fixed set of reusable byte buffers (slabs) that are handed from the reading thread
+ * to the receiver of the data, and returned to the pool once the data has been delivered.
+ * Every slab is allocated when the pool is created, so acquiring and recycling slabs
+ * does not allocate anything.
+ *
+ * @see Slab
+ */
+public class BufferPool
+{
+	/**
+	 * A single buffer of the pool. Only the first <b>length</b> bytes of <b>data</b> are valid.
+	 */
+	public static class Slab
+	{
+		public final byte[] data;
+		public int length;
+
+		private final BufferPool _pool;
+
+		private Slab(BufferPool pool, int size)
+		{
+			_pool 	= pool;
+			data 	= new byte[size];
+		}
+
+		/**
+		 * Return the slab to the pool it was acquired from. The slab must not be used after this.
+		 */
+		public void recycle()
+		{
+			_pool.release(this);
+		}
+	}
+
+	private final ArrayBlockingQueue<Slab> _free;
+
+	/**
+	 * Constructor for BufferPool, allocates all of the slabs.
+	 *
+	 * @param slabCount	How many slabs the pool holds, ie. how many can be in flight at once.
+	 * @param slabSize	Size of a single slab in bytes.
+	 */
+	public BufferPool(int slabCount, int slabSize)
+	{
+		_free = new ArrayBlockingQueue<Slab>(slabCount);
+
+		for(int i = 0; i < slabCount; i++)
+		{
+			_free.offer(new Slab(this, slabSize));
+		}
+	}
+
+	/**
+	 * Take a slab from the pool, waiting until one is recycled if all of them are in use.
+	 *
+	 * @return An empty slab.
+	 * @throws InterruptedException If the thread is interrupted while waiting for a slab.
+	 */
+	public Slab acquire() throws InterruptedException
+	{
+		Slab slab = _free.take();
+		slab.length = 0;
+
+		return slab;
+	}
+
+	/**
+	 * Return a slab to the pool.
+	 *
+	 * @param slab The slab to return, must have been acquired from this pool.
+	 */
+	public void release(Slab slab)
+	{
+		_free.offer(slab);
+	}
+}
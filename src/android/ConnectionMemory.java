@@ -0,0 +1,388 @@
+package org.apache.cordova.bluetooth;
+
+import java.io.File;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+
+/**
+ * Remembers for every device how the last successful connection to it was made: the type
+ * of connection, the UUID and the RFCOMM channel. Connecting again can then start with what
+ * worked, instead of waiting for the other types to fail first.
+ *
+ * The entries are kept in a small JSON file in the files directory of the application. The
+ * file is loaded in the background as soon as load is called, so that getting an entry,
+ * possibly on the main thread, only waits for a load still in progress. Whenever an entry
+ * changes the file is written on the same executor, so that connecting doesn't wait for it.
+ */
+public class ConnectionMemory
+{
+	private static final String LOG_TAG 	= "ConnectionMemory";
+	private static final String FILE_NAME 	= "bluetooth_connections.json";
+
+	/**
+	 * How a connection to a device was made.
+	 */
+	public static class Entry
+	{
+		public final BluetoothWrapper.EConnectionType 	connType;
+		public final UUID 								uuid;
+
+		/**
+		 * RFCOMM channel of the connection, -1 if it is not known.
+		 */
+		public final int channel;
+
+		public Entry(BluetoothWrapper.EConnectionType connType, UUID uuid, int channel)
+		{
+			this.connType 	= connType;
+			this.uuid 		= uuid;
+			this.channel 	= channel;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Entry))
+			{
+				return false;
+			}
+
+			Entry entry = (Entry)o;
+			return connType == entry.connType && uuid.equals(entry.uuid) && channel == entry.channel;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (connType.hashCode() * 31 + uuid.hashCode()) * 31 + channel;
+		}
+	}
+
+	private final Context _ctx;
+
+	/**
+	 * Entries by device address, null until loaded.
+	 */
+	private HashMap<String, Entry> _entries;
+
+	/**
+	 * Load of the file in the background, null until started.
+	 */
+	private Future<HashMap<String, Entry>> _loading;
+
+	/**
+	 * Executor the file is loaded and saved on, null until load is called.
+	 */
+	private ExecutorService _executor;
+
+	/**
+	 * Set while a save is scheduled that hasn't yet taken the entries.
+	 */
+	private boolean _isSavePending;
+
+	/**
+	 * Held while the file is written, so that saves are written in the order they take the
+	 * entries. Taken before the lock of the memory, never while holding it.
+	 */
+	private final Object _fileLock = new Object();
+
+	/**
+	 * Writes the file on the executor.
+	 */
+	private final Runnable _save = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			save();
+		}
+	};
+
+	/**
+	 * Constructor for ConnectionMemory. Nothing is read before load is called.
+	 *
+	 * @param ctx Context whose files directory holds the file.
+	 */
+	public ConnectionMemory(Context ctx)
+	{
+		_ctx = ctx;
+	}
+
+	/**
+	 * Get how the last successful connection to a device was made.
+	 *
+	 * @param address Address of the device.
+	 * @return The entry of the device, or null if there is none.
+	 */
+	public synchronized Entry get(String address)
+	{
+		return entries().get(address.toUpperCase());
+	}
+
+	/**
+	 * Remember how a connection to a device was made, replacing any earlier entry. The file
+	 * is written in the background, and only if the entry changed.
+	 *
+	 * @param address	Address of the device.
+	 * @param entry		How the connection was made.
+	 */
+	public void put(String address, Entry entry)
+	{
+		ExecutorService executor;
+
+		synchronized(this)
+		{
+			Entry previous = entries().put(address.toUpperCase(), entry);
+			if(entry.equals(previous) || _isSavePending)
+			{
+				return;
+			}
+
+			_isSavePending 	= true;
+			executor 		= _executor;
+		}
+
+		if(executor != null)
+		{
+			executor.execute(_save);
+		}
+		else
+		{
+			save();
+		}
+	}
+
+	/**
+	 * Start loading the file in the background. Does nothing if it has already been started.
+	 *
+	 * @param executor Executor that reads the file.
+	 */
+	public synchronized void load(ExecutorService executor)
+	{
+		if(_loading != null)
+		{
+			return;
+		}
+
+		_executor 	= executor;
+		_loading 	= executor.submit(new Callable<HashMap<String, Entry>>()
+		{
+			@Override
+			public HashMap<String, Entry> call()
+			{
+				return read();
+			}
+		});
+	}
+
+	/**
+	 * Get the entries, waiting for the load to finish. Loads the file here only if load was
+	 * never called.
+	 */
+	private HashMap<String, Entry> entries()
+	{
+		if(_entries != null)
+		{
+			return _entries;
+		}
+
+		if(_loading == null)
+		{
+			_entries = read();
+			return _entries;
+		}
+
+		boolean isInterrupted = false;
+		try
+		{
+			while(_entries == null)
+			{
+				try
+				{
+					_entries = _loading.get();
+				}
+				catch(InterruptedException e)
+				{
+					// Entries loaded later would be overwritten by the next save
+					isInterrupted = true;
+				}
+				catch(ExecutionException e)
+				{
+					Log.e(LOG_TAG, "Failed to load remembered connections. " + e.getMessage());
+					_entries = new HashMap<String, Entry>();
+				}
+			}
+		}
+		finally
+		{
+			if(isInterrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return _entries;
+	}
+
+	private File file()
+	{
+		return new File(_ctx.getFilesDir(), FILE_NAME);
+	}
+
+	private HashMap<String, Entry> read()
+	{
+		HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+		File file = file();
+		if(!file.exists())
+		{
+			return entries;
+		}
+
+		FileInputStream input = null;
+		try
+		{
+			input = new FileInputStream(file);
+
+			byte[] bytes = new byte[(int)file.length()];
+			int length = 0;
+			int read;
+			while(length < bytes.length && (read = input.read(bytes, length, bytes.length - length)) > 0)
+			{
+				length += read;
+			}
+
+			JSONObject json = new JSONObject(new String(bytes, 0, length, "UTF-8"));
+			Iterator<?> addresses = json.keys();
+
+			while(addresses.hasNext())
+			{
+				String address 		= (String)addresses.next();
+				JSONObject entry 	= json.getJSONObject(address);
+
+				entries.put(address, new Entry(
+					BluetoothWrapper.EConnectionType.valueOf(entry.getString("conn")),
+					UUID.fromString(entry.getString("uuid")),
+					entry.optInt("channel", -1)
+				));
+			}
+		}
+		catch(Exception e)
+		{
+			Log.e(LOG_TAG, "Failed to load remembered connections. " + e.getMessage());
+		}
+		finally
+		{
+			close(input);
+		}
+		return entries;
+	}
+
+	/**
+	 * Write the entries into a temporary file and move it in place, so that a failed write
+	 * doesn't leave a broken file behind. The lock of the memory is only held while taking
+	 * the entries, not while writing.
+	 */
+	private void save()
+	{
+		synchronized(_fileLock)
+		{
+			byte[] bytes;
+
+			synchronized(this)
+			{
+				_isSavePending = false;
+
+				try
+				{
+					bytes = toJson().toString().getBytes("UTF-8");
+				}
+				catch(Exception e)
+				{
+					Log.e(LOG_TAG, "Failed to save remembered connections. " + e.getMessage());
+					return;
+				}
+			}
+
+			write(bytes);
+		}
+	}
+
+	private JSONObject toJson() throws JSONException
+	{
+		JSONObject json = new JSONObject();
+
+		for(String address : _entries.keySet())
+		{
+			Entry entry = _entries.get(address);
+
+			JSONObject jsonEntry = new JSONObject();
+			jsonEntry.put("conn", entry.connType.name());
+			jsonEntry.put("uuid", entry.uuid.toString());
+			jsonEntry.put("channel", entry.channel);
+
+			json.put(address, jsonEntry);
+		}
+		return json;
+	}
+
+	private void write(byte[] bytes)
+	{
+		File file 			= file();
+		File tmp 			= new File(file.getPath() + ".tmp");
+		FileOutputStream output = null;
+
+		try
+		{
+			output = new FileOutputStream(tmp);
+			output.write(bytes);
+			output.getFD().sync();
+			output.close();
+			output = null;
+
+			if(!tmp.renameTo(file))
+			{
+				throw new IOException("Failed to replace " + file.getName() + ".");
+			}
+		}
+		catch(Exception e)
+		{
+			Log.e(LOG_TAG, "Failed to save remembered connections. " + e.getMessage());
+		}
+		finally
+		{
+			close(output);
+		}
+	}
+
+	private void close(Closeable closeable)
+	{
+		try
+		{
+			if(closeable != null)
+			{
+				closeable.close();
+			}
+		}
+		catch(IOException e)
+		{
+			Log.e(LOG_TAG, "Failed to close file. " + e.getMessage());
+		}
+	}
+}
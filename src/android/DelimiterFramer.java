@@ -0,0 +1,108 @@
+package org.apache.cordova.bluetooth;
+
+/**
+ * Splits the data read from a connection into frames that end in a delimiter, and puts
+ * every complete frame into the ReadQueue as a record of its own. The delimiter is removed
+ * from the frame. The delimiter can be matched even if it is split between two reads.
+ *
+ * @see ReadSink
+ * @see ReadQueue
+ */
+public class DelimiterFramer implements ReadSink
+{
+	private final ReadQueue 	_queue;
+	private final byte[] 		_delimiter;
+	private final int 			_maxFrameLength;
+
+	/**
+	 * For every prefix of the delimiter, the length of the longest proper prefix that is
+	 * also its suffix. Allows continuing a partial match without rescanning (KMP).
+	 */
+	private final int[] _fallback;
+
+	/**
+	 * Frame currently being filled, including the delimiter bytes matched so far.
+	 */
+	private final byte[] _frame;
+	private int _length;
+
+	/**
+	 * How many bytes of the delimiter the end of the frame matches.
+	 */
+	private int _matched;
+
+	/**
+	 * Constructor for DelimiterFramer.
+	 *
+	 * @param queue				Queue the frames are put into, has to fit records of <b>maxFrameLength</b> and the delimiter.
+	 * @param delimiter			Bytes that end a frame, at least one.
+	 * @param maxFrameLength	Maximum length of a frame, longer data is split into frames of this length even if it doesn't end in the delimiter.
+	 */
+	public DelimiterFramer(ReadQueue queue, byte[] delimiter, int maxFrameLength)
+	{
+		_queue 			= queue;
+		_delimiter 		= delimiter;
+		_maxFrameLength = maxFrameLength;
+		_frame 			= new byte[maxFrameLength + delimiter.length];
+		_fallback 		= new int[delimiter.length];
+
+		for(int i = 1, k = 0; i < delimiter.length; i++)
+		{
+			while(k > 0 && delimiter[i] != delimiter[k])
+			{
+				k = _fallback[k - 1];
+			}
+			if(delimiter[i] == delimiter[k])
+			{
+				k++;
+			}
+			_fallback[i] = k;
+		}
+	}
+
+	@Override
+	public void append(byte[] bytes, int length) throws InterruptedException
+	{
+		for(int i = 0; i < length; i++)
+		{
+			byte b = bytes[i];
+			_frame[_length++] = b;
+
+			while(_matched > 0 && b != _delimiter[_matched])
+			{
+				_matched = _fallback[_matched - 1];
+			}
+			if(b == _delimiter[_matched])
+			{
+				_matched++;
+			}
+
+			if(_matched == _delimiter.length)
+			{
+				_queue.put(_frame, 0, _length - _delimiter.length);
+				_length 	= 0;
+				_matched 	= 0;
+			}
+			else if(_length - _matched > _maxFrameLength)
+			{
+				// Too long, send a full frame but keep the byte past it and the partially
+				// matched delimiter. A frame of exactly the maximum length still waits for
+				// its delimiter, which then doesn't end an empty frame.
+				_queue.put(_frame, 0, _maxFrameLength);
+				_length -= _maxFrameLength;
+				System.arraycopy(_frame, _maxFrameLength, _frame, 0, _length);
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws InterruptedException
+	{
+		if(_length > 0)
+		{
+			_queue.put(_frame, 0, _length);
+		}
+		_length 	= 0;
+		_matched 	= 0;
+	}
+}
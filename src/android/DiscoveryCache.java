@@ -0,0 +1,115 @@
+package org.apache.cordova.bluetooth;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.os.SystemClock;
+
+
+/**
+ * Remembers the devices reported by discoveries, so that a device found over and over is
+ * reported only once. The same device is usually found several times during a single
+ * discovery, and again by every discovery started after it.
+ *
+ * A remembered device is reported again once it has not been reported for the TTL, or if
+ * its name has changed or its RSSI has changed by at least the given delta.
+ */
+public class DiscoveryCache
+{
+	/**
+	 * Value of an unknown RSSI, as given for a missing Intent extra.
+	 */
+	public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+	/**
+	 * How a device was when it was last reported.
+	 */
+	private static class Entry
+	{
+		private final String 	_name;
+		private final short 	_rssi;
+
+		/**
+		 * Uptime in millis when the device was reported.
+		 */
+		private final long _time;
+
+		private Entry(String name, short rssi, long time)
+		{
+			_name = name;
+			_rssi = rssi;
+			_time = time;
+		}
+	}
+
+	/**
+	 * Entries by device address.
+	 */
+	private final HashMap<String, Entry> _entries = new HashMap<String, Entry>();
+
+	/**
+	 * Uptime in millis when expired entries were last removed.
+	 */
+	private long _pruneTime;
+
+	/**
+	 * Check whether a found device should be reported, and remember it if it should.
+	 *
+	 * @param address	Address of the device.
+	 * @param name		Name of the device, can be null.
+	 * @param rssi		RSSI of the device, or RSSI_UNKNOWN.
+	 * @param ttl		Time in millis a reported device is remembered.
+	 * @param rssiDelta	Change of RSSI at which the device is reported again.
+	 * @return True if the device should be reported.
+	 */
+	public synchronized boolean update(String address, String name, short rssi, int ttl, int rssiDelta)
+	{
+		long now = SystemClock.uptimeMillis();
+		prune(now, ttl);
+
+		Entry entry = _entries.get(address);
+		if(entry != null && now - entry._time < ttl && equals(entry._name, name)
+			&& (entry._rssi == RSSI_UNKNOWN || rssi == RSSI_UNKNOWN || Math.abs(entry._rssi - rssi) < rssiDelta))
+		{
+			return false;
+		}
+
+		_entries.put(address, new Entry(name, rssi, now));
+		return true;
+	}
+
+	/**
+	 * Forget every device, so that each is reported the next time it is found.
+	 */
+	public synchronized void clear()
+	{
+		_entries.clear();
+	}
+
+	/**
+	 * Remove the entries that have expired, at most once per TTL, so that devices which
+	 * are not found again don't pile up.
+	 */
+	private void prune(long now, int ttl)
+	{
+		if(now - _pruneTime < ttl)
+		{
+			return;
+		}
+		_pruneTime = now;
+
+		Iterator<Entry> entries = _entries.values().iterator();
+		while(entries.hasNext())
+		{
+			if(now - entries.next()._time >= ttl)
+			{
+				entries.remove();
+			}
+		}
+	}
+
+	private static boolean equals(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+}
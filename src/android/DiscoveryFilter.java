@@ -0,0 +1,175 @@
+package org.apache.cordova.bluetooth;
+
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+
+/**
+ * Filter for the devices found by a discovery, checked before anything about a device is
+ * reported. A device has to pass every criterion that is set, criteria that are not set
+ * pass everything.
+ *
+ * The cheap criteria are checked first, and the service UUIDs last, since getting them
+ * calls into the Bluetooth service.
+ */
+public class DiscoveryFilter
+{
+	/**
+	 * Minimum RSSI in dBm, DiscoveryCache.RSSI_UNKNOWN for no minimum. A device whose RSSI
+	 * is not known does not pass a minimum.
+	 */
+	public short minRssi = DiscoveryCache.RSSI_UNKNOWN;
+
+	/**
+	 * Major device classes of which the device has to be one, null for any.
+	 *
+	 * @see BluetoothClass.Device.Major
+	 */
+	public int[] majorDeviceClasses;
+
+	/**
+	 * Device classes, major and minor, of which the device has to be one, null for any.
+	 *
+	 * @see BluetoothClass.Device
+	 */
+	public int[] deviceClasses;
+
+	/**
+	 * Pattern found in the name of the device, null for any name. A device whose name is
+	 * not known does not pass a pattern.
+	 */
+	public Pattern namePattern;
+
+	/**
+	 * Upper case addresses of which the device has to have one, null for any address.
+	 */
+	public String[] addresses;
+
+	/**
+	 * Upper case prefixes of which the address of the device has to start with one, null
+	 * for any address.
+	 */
+	public String[] addressPrefixes;
+
+	/**
+	 * Service UUIDs of which the device has to offer one, null for any. Only the UUIDs
+	 * already known of the device can be checked, that is those of bonded devices and
+	 * of devices whose UUIDs have been fetched before.
+	 */
+	public UUID[] serviceUuids;
+
+	/**
+	 * Check whether a found device passes the filter.
+	 *
+	 * @param device		The device.
+	 * @param rssi			RSSI of the device, or DiscoveryCache.RSSI_UNKNOWN.
+	 * @param deviceClass	Class of the device, can be null.
+	 * @return True if the device passes every criterion.
+	 */
+	public boolean matches(BluetoothDevice device, short rssi, BluetoothClass deviceClass)
+	{
+		if(minRssi != DiscoveryCache.RSSI_UNKNOWN && (rssi == DiscoveryCache.RSSI_UNKNOWN || rssi < minRssi))
+		{
+			return false;
+		}
+
+		if(majorDeviceClasses != null
+			&& (deviceClass == null || !contains(majorDeviceClasses, deviceClass.getMajorDeviceClass())))
+		{
+			return false;
+		}
+
+		if(deviceClasses != null
+			&& (deviceClass == null || !contains(deviceClasses, deviceClass.getDeviceClass())))
+		{
+			return false;
+		}
+
+		if(addresses != null && !hasAddress(device.getAddress()))
+		{
+			return false;
+		}
+
+		if(addressPrefixes != null && !hasPrefix(device.getAddress()))
+		{
+			return false;
+		}
+
+		if(namePattern != null)
+		{
+			String name = device.getName();
+			if(name == null || !namePattern.matcher(name).find())
+			{
+				return false;
+			}
+		}
+
+		if(serviceUuids != null && !hasService(device.getUuids()))
+		{
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean hasAddress(String address)
+	{
+		for(String a : addresses)
+		{
+			if(a.equalsIgnoreCase(address))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean hasPrefix(String address)
+	{
+		address = address.toUpperCase();
+		for(String prefix : addressPrefixes)
+		{
+			if(address.startsWith(prefix))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean hasService(ParcelUuid[] uuids)
+	{
+		if(uuids == null)
+		{
+			return false;
+		}
+
+		for(ParcelUuid uuid : uuids)
+		{
+			for(UUID serviceUuid : serviceUuids)
+			{
+				if(serviceUuid.equals(uuid.getUuid()))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean contains(int[] values, int value)
+	{
+		for(int v : values)
+		{
+			if(v == value)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,64 @@
+package org.apache.cordova.bluetooth;
+
+
+/**
+ * Options for how the devices found by a discovery are reported.
+ *
+ * @see BluetoothWrapper#startDiscovery(DiscoveryOptions)
+ */
+public class DiscoveryOptions
+{
+	/**
+	 * Connection made to the device a targeted discovery stops on.
+	 *
+	 * @see BluetoothWrapper#connect(String, String, String, String[], int, int)
+	 */
+	public static class Connect
+	{
+		public String 	id;
+		public String 	uuid;
+		public String[] connTypes;
+		public int 		timeout;
+		public int 		stagger;
+	}
+
+	/**
+	 * Time in millis a reported device is remembered, across discoveries, so that it is not
+	 * reported again unless it changes. 0 to report every time the device is found.
+	 */
+	public int cacheTtl;
+
+	/**
+	 * Change of RSSI in dBm at which a remembered device is reported again.
+	 */
+	public int rssiDelta;
+
+	/**
+	 * Filter the found devices have to pass to be reported, null to report every device.
+	 */
+	public DiscoveryFilter filter;
+
+	/**
+	 * True to cancel the discovery as soon as a device passes the filter. That device is
+	 * reported even if it is remembered by the cache, and no device after it is.
+	 */
+	public boolean stopOnMatch;
+
+	/**
+	 * Connection made to the matching device when stopping on a match, null for none.
+	 */
+	public Connect connect;
+
+	/**
+	 * Number of devices whose UUIDs are fetched at once once the inquiry has finished, 0 to
+	 * not fetch UUIDs. Every reported device is fetched, and the discovery finishes once
+	 * they all have been. Not done when connecting to a matching device.
+	 */
+	public int uuidConcurrency;
+
+	/**
+	 * Time in millis to wait for the UUIDs of a device, after which the UUIDs already
+	 * known of it are reported.
+	 */
+	public int uuidTimeout;
+}
@@ -0,0 +1,165 @@
+package org.apache.cordova.bluetooth;
+
+
+/**
+ * Converts between bytes and hexadecimal strings using lookup tables. Encoding reuses a
+ * buffer between calls, and decoding validates the input in the same pass. Decoding can
+ * be streamed: a digit left over at the end of a chunk is carried over to the next one.
+ *
+ * An instance keeps state between calls, so one should be used per stream.
+ */
+public class HexCodec
+{
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Both characters of every byte value, high digit first.
+	 */
+	private static final char[] ENCODE = new char[256 * 2];
+
+	/**
+	 * Value of every hexadecimal digit in ASCII, -1 for the other characters.
+	 */
+	private static final byte[] DECODE = new byte[128];
+
+	static
+	{
+		for(int i = 0; i < 256; i++)
+		{
+			ENCODE[i * 2] 		= DIGITS[i >>> 4];
+			ENCODE[i * 2 + 1] 	= DIGITS[i & 0x0F];
+		}
+
+		for(int i = 0; i < DECODE.length; i++)
+		{
+			DECODE[i] = -1;
+		}
+		for(int i = 0; i < 10; i++)
+		{
+			DECODE['0' + i] = (byte)i;
+		}
+		for(int i = 0; i < 6; i++)
+		{
+			DECODE['A' + i] = (byte)(10 + i);
+			DECODE['a' + i] = (byte)(10 + i);
+		}
+	}
+
+	private char[] _chars = new char[0];
+
+	/**
+	 * High digit left over from the previous chunk, -1 if there is none.
+	 */
+	private int _pending = -1;
+
+	/**
+	 * Encode bytes as an uppercase hexadecimal string.
+	 *
+	 * @param bytes		Buffer holding the bytes.
+	 * @param length	Number of bytes to encode, starting from the beginning of the buffer.
+	 * @return The hexadecimal string, two characters per byte.
+	 */
+	public String encode(byte[] bytes, int length)
+	{
+		if(_chars.length < length * 2)
+		{
+			_chars = new char[length * 2];
+		}
+
+		for(int i = 0, j = 0; i < length; i++, j += 2)
+		{
+			int v = (bytes[i] & 0xFF) * 2;
+			_chars[j] 		= ENCODE[v];
+			_chars[j + 1] 	= ENCODE[v + 1];
+		}
+
+		return new String(_chars, 0, length * 2);
+	}
+
+	/**
+	 * Decode the next chunk of a hexadecimal stream. A trailing digit that doesn't make a
+	 * full byte is kept and combined with the first digit of the next chunk.
+	 *
+	 * @param hex		The chunk of hexadecimal digits.
+	 * @param out		Buffer the bytes are written to, has to fit (pending digit + length of chunk) / 2 bytes.
+	 * @param offset	Where to start writing in the buffer.
+	 * @return Number of bytes written.
+	 * @throws IllegalArgumentException If the chunk contains a character that is not a hexadecimal digit.
+	 */
+	public int decode(CharSequence hex, byte[] out, int offset)
+	{
+		int written = 0;
+		int length 	= hex.length();
+		int i 		= 0;
+
+		if(_pending >= 0 && length > 0)
+		{
+			out[offset + written++] = (byte)((_pending << 4) | digit(hex, 0));
+			_pending = -1;
+			i = 1;
+		}
+
+		for(; i + 1 < length; i += 2)
+		{
+			out[offset + written++] = (byte)((digit(hex, i) << 4) | digit(hex, i + 1));
+		}
+
+		if(i < length)
+		{
+			_pending = digit(hex, i);
+		}
+
+		return written;
+	}
+
+	/**
+	 * End the current stream.
+	 *
+	 * @throws IllegalArgumentException If the stream ended in the middle of a byte.
+	 */
+	public void finish()
+	{
+		boolean isIncomplete = _pending >= 0;
+		_pending = -1;
+
+		if(isIncomplete)
+		{
+			throw new IllegalArgumentException("Hexadecimal data has an odd number of digits.");
+		}
+	}
+
+	/**
+	 * Decode a complete hexadecimal string.
+	 *
+	 * @param hex Hexadecimal digits, two per byte.
+	 * @return The decoded bytes.
+	 * @throws IllegalArgumentException If the string has an odd length or contains a character that is not a hexadecimal digit.
+	 */
+	public static byte[] decode(String hex)
+	{
+		if(hex.length() % 2 != 0)
+		{
+			throw new IllegalArgumentException("Hexadecimal data has an odd number of digits.");
+		}
+
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0, j = 0; i < bytes.length; i++, j += 2)
+		{
+			bytes[i] = (byte)((digit(hex, j) << 4) | digit(hex, j + 1));
+		}
+
+		return bytes;
+	}
+
+	private static int digit(CharSequence hex, int index)
+	{
+		char c = hex.charAt(index);
+		int value = c < DECODE.length ? DECODE[c] : -1;
+
+		if(value < 0)
+		{
+			throw new IllegalArgumentException("Invalid hexadecimal digit '" + c + "' at " + index + ".");
+		}
+		return value;
+	}
+}
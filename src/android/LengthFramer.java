@@ -0,0 +1,166 @@
+package org.apache.cordova.bluetooth;
+
+import android.util.Log;
+
+
+/**
+ * Splits the data read from a connection into binary frames and puts every complete frame
+ * into the ReadQueue as a record of its own. Frames are either of a fixed size, or start with
+ * a header that contains the length of the rest of the frame. The header is included in the
+ * frame.
+ *
+ * A header is <b>lengthFieldOffset</b> bytes followed by an unsigned length field of 1, 2
+ * or 4 bytes. The length field counts the bytes after the header. Frames longer than the
+ * maximum frame length are skipped, since the stream can't be split reliably otherwise.
+ *
+ * @see ReadSink
+ * @see ReadQueue
+ */
+public class LengthFramer implements ReadSink
+{
+	private static final String LOG_TAG = "LengthFramer";
+
+	private final ReadQueue 	_queue;
+	private final int 			_maxFrameLength;
+
+	private final int 		_frameSize;
+	private final int 		_lengthFieldOffset;
+	private final int 		_lengthFieldSize;
+	private final boolean 	_isLittleEndian;
+
+	/**
+	 * Frame currently being filled.
+	 */
+	private final byte[] _frame;
+	private int _length;
+
+	/**
+	 * Full length of the current frame, or -1 while its header is incomplete.
+	 */
+	private int _expected;
+
+	/**
+	 * How many bytes of an oversized frame are still to be skipped.
+	 */
+	private long _skip;
+
+	/**
+	 * Constructor for LengthFramer that splits the data into fixed size frames.
+	 *
+	 * @param queue		Queue the frames are put into, has to fit records of <b>frameSize</b>.
+	 * @param frameSize	Size of every frame in bytes.
+	 */
+	public LengthFramer(ReadQueue queue, int frameSize)
+	{
+		this(queue, frameSize, frameSize, 0, 0, false);
+	}
+
+	/**
+	 * Constructor for LengthFramer that splits the data into frames by the length in their header.
+	 *
+	 * @param queue				Queue the frames are put into, has to fit records of <b>maxFrameLength</b>.
+	 * @param maxFrameLength	Maximum length of a frame, including its header.
+	 * @param lengthFieldOffset	Number of bytes in the header before the length field.
+	 * @param lengthFieldSize	Size of the length field in bytes, 1, 2 or 4.
+	 * @param isLittleEndian	True if the length field is little endian, false for big endian.
+	 */
+	public LengthFramer(ReadQueue queue, int maxFrameLength,
+		int lengthFieldOffset, int lengthFieldSize, boolean isLittleEndian)
+	{
+		this(queue, maxFrameLength, 0, lengthFieldOffset, lengthFieldSize, isLittleEndian);
+	}
+
+	private LengthFramer(ReadQueue queue, int maxFrameLength, int frameSize,
+		int lengthFieldOffset, int lengthFieldSize, boolean isLittleEndian)
+	{
+		_queue 				= queue;
+		_frame 				= new byte[maxFrameLength];
+		_maxFrameLength 	= maxFrameLength;
+		_frameSize 			= frameSize;
+		_lengthFieldOffset 	= lengthFieldOffset;
+		_lengthFieldSize 	= lengthFieldSize;
+		_isLittleEndian 	= isLittleEndian;
+		_expected 			= _frameSize > 0 ? _frameSize : -1;
+	}
+
+	@Override
+	public void append(byte[] bytes, int length) throws InterruptedException
+	{
+		int offset = 0;
+
+		while(offset < length)
+		{
+			if(_skip > 0)
+			{
+				int skipped = (int)Math.min(_skip, length - offset);
+				_skip 	-= skipped;
+				offset 	+= skipped;
+				continue;
+			}
+
+			int headerSize 	= _lengthFieldOffset + _lengthFieldSize;
+			int wanted 		= (_expected < 0 ? headerSize : _expected) - _length;
+			int copied 		= Math.min(wanted, length - offset);
+
+			System.arraycopy(bytes, offset, _frame, _length, copied);
+			_length += copied;
+			offset 	+= copied;
+
+			if(copied < wanted)
+			{
+				break;
+			}
+
+			if(_expected < 0)
+			{
+				long frameLength = headerSize + readLength();
+				if(frameLength > _maxFrameLength)
+				{
+					Log.e(LOG_TAG, "Skipping a frame of " + frameLength + " bytes, maximum is " + _maxFrameLength + ".");
+
+					_skip = frameLength - _length;
+					reset();
+					continue;
+				}
+				_expected = (int)frameLength;
+			}
+
+			if(_length == _expected)
+			{
+				_queue.put(_frame, 0, _length);
+				reset();
+			}
+		}
+	}
+
+	/**
+	 * Incomplete frames can't be delivered as frames, so they are dropped.
+	 */
+	@Override
+	public void flush()
+	{
+		reset();
+		_skip = 0;
+	}
+
+	private void reset()
+	{
+		_length 	= 0;
+		_expected 	= _frameSize > 0 ? _frameSize : -1;
+	}
+
+	private long readLength()
+	{
+		long value = 0;
+
+		for(int i = 0; i < _lengthFieldSize; i++)
+		{
+			int index = _isLittleEndian
+				? _lengthFieldOffset + _lengthFieldSize - 1 - i
+				: _lengthFieldOffset + i;
+
+			value = (value << 8) | (_frame[index] & 0xFF);
+		}
+		return value;
+	}
+}
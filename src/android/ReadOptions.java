@@ -0,0 +1,66 @@
+package org.apache.cordova.bluetooth;
+
+
+/**
+ * Options for how a managed connection delivers the data it reads.
+ * By default every read is delivered as is.
+ *
+ * @see BluetoothWrapper#startConnectionManager(String, ReadOptions, WriteOptions, ReconnectOptions)
+ */
+public class ReadOptions
+{
+	/**
+	 * Size in bytes of the queue holding the read data until it is delivered.
+	 */
+	public int queueCapacity;
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	public ReadQueue.EOverflowPolicy overflowPolicy = ReadQueue.EOverflowPolicy.Block;
+
+	/**
+	 * Size in bytes at which gathered reads are delivered, 0 to deliver every read as is.
+	 * Ignored when the data is split into frames.
+	 */
+	public int batchSize;
+
+	/**
+	 * Time in millis a read can wait to be delivered when reads are gathered.
+	 */
+	public int batchDelay;
+
+	/**
+	 * Bytes that end a frame, null if the data is not split by a delimiter.
+	 * The delimiter is not included in the delivered frames.
+	 */
+	public byte[] delimiter;
+
+	/**
+	 * Maximum length of a frame in bytes. Data that reaches this length without
+	 * ending in a delimiter is delivered as a frame of its own, and length prefixed
+	 * frames that are longer are skipped.
+	 */
+	public int maxFrameLength;
+
+	/**
+	 * Size of every frame in bytes, 0 if the data is not split into fixed size frames.
+	 */
+	public int frameSize;
+
+	/**
+	 * Size in bytes of the length field that starts a frame, 1, 2 or 4. 0 if the data
+	 * is not split into length prefixed frames.
+	 */
+	public int lengthFieldSize;
+
+	/**
+	 * Number of bytes in a frame before its length field.
+	 */
+	public int lengthFieldOffset;
+
+	/**
+	 * True if the length field is little endian, false for big endian.
+	 */
+	public boolean isLittleEndian;
+}
@@ -0,0 +1,383 @@
+package org.apache.cordova.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.SystemClock;
+
+
+/**
+ * Bounded ring buffer holding the data read from a connection until it is delivered.
+ * The reading thread puts records (reads or frames) into the ring, and a delivery thread
+ * takes them out. There has to be exactly one thread of each, which lets the ring work
+ * without locks: the producer only moves the tail, and the consumer only moves the head.
+ * A waiting thread is parked and unparked by the other one.
+ *
+ * When the ring is full, the overflow policy decides whether the reading thread waits for
+ * space, or whether the oldest or the newest data is dropped. Dropped bytes are counted.
+ * To drop the oldest data, the producer moves the head too, so the head is only moved with
+ * compare-and-set. The consumer copies a record before it claims it, and retries if the
+ * record was dropped in the meantime.
+ *
+ * Records can optionally be merged into batches when they are taken. A batch is delivered
+ * when it reaches the batch size, or when its first byte has waited for the batch delay.
+ */
+public class ReadQueue
+{
+	/**
+	 * What to do when there is no room in the ring for new data.
+	 */
+	public enum EOverflowPolicy
+	{
+		/**
+		 * Make the reading thread wait, so that the remote device is slowed down by flow control.
+		 */
+		Block,
+
+		/**
+		 * Drop the oldest records until the new one fits.
+		 */
+		DropOldest,
+
+		/**
+		 * Drop the new record.
+		 */
+		DropNewest
+	}
+
+	/**
+	 * Every record in the ring starts with its length as a 4 byte integer.
+	 */
+	private static final int HEADER_SIZE = 4;
+
+	/**
+	 * How many slabs can be taken at once, the consumer recycles them one by one.
+	 */
+	private static final int SLAB_COUNT = 2;
+
+	private final BufferPool 		_pool;
+	private final EOverflowPolicy 	_policy;
+	private final int 				_maxRecordLength;
+	private final int 				_batchSize;
+	private final int 				_batchDelay;
+
+	private final byte[] _ring;
+
+	/**
+	 * Positions only grow, the index in the ring is the position modulo its size.
+	 * Everything between the head and the tail is in the ring.
+	 */
+	private final AtomicLong 	_head = new AtomicLong();
+	private volatile long 		_tail;
+
+	/**
+	 * Written only by the producer.
+	 */
+	private volatile long _droppedBytes;
+
+	/**
+	 * Uptime in millis when the oldest data in the ring was put there, used for batching.
+	 */
+	private volatile long _oldestTime;
+
+	private volatile boolean _isClosed;
+
+	private volatile Thread 	_producer;
+	private volatile Thread 	_consumer;
+	private volatile boolean 	_isProducerParked;
+	private volatile boolean 	_isConsumerParked;
+
+	/**
+	 * Constructor for ReadQueue.
+	 *
+	 * @param capacity			Size of the ring in bytes, grown to fit at least one record.
+	 * @param maxRecordLength	Maximum length of a single record in bytes.
+	 * @param policy			What to do when the ring is full.
+	 * @param batchSize			Size in bytes at which a batch is delivered, 0 to deliver every record on its own.
+	 * @param batchDelay		Time in millis the first byte of a batch can wait before the batch is delivered.
+	 */
+	public ReadQueue(int capacity, int maxRecordLength, EOverflowPolicy policy, int batchSize, int batchDelay)
+	{
+		_policy 			= policy;
+		_maxRecordLength 	= maxRecordLength;
+		_batchSize 			= batchSize;
+		_batchDelay 		= batchDelay;
+		_ring 				= new byte[Math.max(capacity, HEADER_SIZE + maxRecordLength)];
+		_pool 				= new BufferPool(SLAB_COUNT, Math.max(maxRecordLength, batchSize));
+	}
+
+	/**
+	 * Put a record into the ring. Depending on the overflow policy, this waits until there
+	 * is room for the record, or drops data to make room. Called only by the producer.
+	 *
+	 * @param bytes		Buffer holding the record.
+	 * @param offset	Where the record starts in the buffer.
+	 * @param length	Length of the record in bytes, at most the maximum record length.
+	 * @throws InterruptedException If the thread is interrupted while waiting for room.
+	 */
+	public void put(byte[] bytes, int offset, int length) throws InterruptedException
+	{
+		int needed 	= HEADER_SIZE + length;
+		long tail 	= _tail;
+		long head;
+
+		while(_ring.length - (tail - (head = _head.get())) < needed)
+		{
+			if(_isClosed)
+			{
+				return;
+			}
+
+			if(_policy == EOverflowPolicy.Block)
+			{
+				_producer 			= Thread.currentThread();
+				_isProducerParked 	= true;
+
+				if(_ring.length - (tail - _head.get()) < needed && !_isClosed)
+				{
+					LockSupport.park(this);
+				}
+
+				_isProducerParked = false;
+
+				if(Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+			}
+			else if(_policy == EOverflowPolicy.DropOldest)
+			{
+				int dropped = readInt(head);
+				if(_head.compareAndSet(head, head + HEADER_SIZE + dropped))
+				{
+					_droppedBytes += dropped;
+				}
+			}
+			else
+			{
+				_droppedBytes += length;
+				return;
+			}
+		}
+
+		if(_isClosed)
+		{
+			return;
+		}
+
+		boolean wasEmpty = tail == head;
+		if(wasEmpty)
+		{
+			_oldestTime = SystemClock.uptimeMillis();
+		}
+
+		writeInt(tail, length);
+		copyIn(tail + HEADER_SIZE, bytes, offset, length);
+
+		// Publishes the record to the consumer
+		_tail = tail + needed;
+
+		// With batching, the consumer is only woken up to start waiting for a batch, or when one fills up
+		if(_isConsumerParked && (_batchSize == 0 || wasEmpty || tail + needed - _head.get() >= _batchSize))
+		{
+			LockSupport.unpark(_consumer);
+		}
+	}
+
+	/**
+	 * Take the next record, or batch of records, from the ring. Waits until there is
+	 * something to deliver. Called only by the consumer.
+	 *
+	 * @return A slab holding the data, which has to be recycled by the caller. Null once the
+	 * queue has been closed and everything in it has been taken.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public BufferPool.Slab take() throws InterruptedException
+	{
+		_consumer = Thread.currentThread();
+
+		while(true)
+		{
+			long wait = waitTime();
+
+			if(wait == 0)
+			{
+				BufferPool.Slab slab = _pool.acquire();
+				if(copyOut(slab))
+				{
+					if(_isProducerParked)
+					{
+						LockSupport.unpark(_producer);
+					}
+					return slab;
+				}
+				slab.recycle();
+			}
+			else if(wait < 0 && _isClosed)
+			{
+				return null;
+			}
+			else
+			{
+				_isConsumerParked = true;
+
+				// Check again now that the producer knows to wake us up
+				long recheck = waitTime();
+				if(recheck < 0 && !_isClosed)
+				{
+					LockSupport.park(this);
+				}
+				else if(recheck > 0)
+				{
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(recheck));
+				}
+
+				_isConsumerParked = false;
+
+				if(Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting records and wake up both threads. The consumer can still take
+	 * whatever is in the ring, without waiting for batches to fill up.
+	 */
+	public void close()
+	{
+		_isClosed = true;
+
+		Thread producer = _producer;
+		Thread consumer = _consumer;
+
+		if(producer != null)
+		{
+			LockSupport.unpark(producer);
+		}
+		if(consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Get the number of bytes dropped because the ring was full.
+	 *
+	 * @return Number of dropped bytes.
+	 */
+	public long getDroppedBytes()
+	{
+		return _droppedBytes;
+	}
+
+	/**
+	 * How long the consumer has to wait before taking data.
+	 *
+	 * @return 0 if there is something to take, millis to wait for a batch to fill up, or -1
+	 * if the ring is empty.
+	 */
+	private long waitTime()
+	{
+		long used = _tail - _head.get();
+
+		if(used == 0)
+		{
+			return -1;
+		}
+
+		if(_batchSize == 0 || _isClosed || used >= _batchSize)
+		{
+			return 0;
+		}
+
+		return Math.max(0, _oldestTime + _batchDelay - SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * Copy the record, or batch of records, at the head into the slab and claim it.
+	 *
+	 * @return False if the producer dropped the records while they were copied.
+	 */
+	private boolean copyOut(BufferPool.Slab slab)
+	{
+		long head 	= _head.get();
+		long tail 	= _tail;
+		long pos 	= head;
+
+		do
+		{
+			int length = readInt(pos);
+
+			// A dropped record can be overwritten while we read it
+			if(length < 0 || length > _maxRecordLength || pos + HEADER_SIZE + length > tail
+				|| slab.length + length > slab.data.length)
+			{
+				break;
+			}
+
+			copyOut(pos + HEADER_SIZE, slab.data, slab.length, length);
+			slab.length += length;
+			pos 		+= HEADER_SIZE + length;
+		}
+		while(_batchSize > 0 && slab.length < _batchSize && pos < tail);
+
+		if(pos == head || !_head.compareAndSet(head, pos))
+		{
+			slab.length = 0;
+			return false;
+		}
+
+		if(pos != tail)
+		{
+			// Whatever remains starts a new batch
+			_oldestTime = SystemClock.uptimeMillis();
+		}
+		return true;
+	}
+
+	private int readInt(long position)
+	{
+		int value = 0;
+
+		for(int i = 0; i < HEADER_SIZE; i++)
+		{
+			value |= (_ring[index(position + i)] & 0xFF) << (8 * i);
+		}
+		return value;
+	}
+
+	private void writeInt(long position, int value)
+	{
+		for(int i = 0; i < HEADER_SIZE; i++)
+		{
+			_ring[index(position + i)] = (byte)(value >>> (8 * i));
+		}
+	}
+
+	private void copyIn(long position, byte[] bytes, int offset, int length)
+	{
+		int start = index(position);
+		int first = Math.min(length, _ring.length - start);
+
+		System.arraycopy(bytes, offset, _ring, start, first);
+		System.arraycopy(bytes, offset + first, _ring, 0, length - first);
+	}
+
+	private void copyOut(long position, byte[] bytes, int offset, int length)
+	{
+		int start = index(position);
+		int first = Math.min(length, _ring.length - start);
+
+		System.arraycopy(_ring, start, bytes, offset, first);
+		System.arraycopy(_ring, 0, bytes, offset + first, length - first);
+	}
+
+	private int index(long position)
+	{
+		return (int)(position % _ring.length);
+	}
+}
@@ -0,0 +1,27 @@
+package org.apache.cordova.bluetooth;
+
+
+/**
+ * Receives the chunks read by a managed connection and turns them into records of the
+ * ReadQueue, eg. by splitting them into frames.
+ *
+ * @see ReadQueue
+ */
+public interface ReadSink
+{
+	/**
+	 * Pass a chunk read from the connection. Called only from the reading thread.
+	 *
+	 * @param bytes		Buffer holding the chunk, can be reused after this returns.
+	 * @param length	Number of bytes in the chunk, starting from the beginning of the buffer.
+	 * @throws InterruptedException If the thread is interrupted while waiting for room in the queue.
+	 */
+	public void append(byte[] bytes, int length) throws InterruptedException;
+
+	/**
+	 * Pass on or drop any data that is still held back, eg. when the connection ends.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting for room in the queue.
+	 */
+	public void flush() throws InterruptedException;
+}
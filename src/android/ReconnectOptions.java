@@ -0,0 +1,28 @@
+package org.apache.cordova.bluetooth;
+
+
+/**
+ * Options for reconnecting a managed connection automatically when it is lost. The delay
+ * before every attempt is doubled from the previous one up to the maximum, and randomized
+ * between half of it and all of it, so that many connections lost at once don't all
+ * reconnect at the same moment.
+ *
+ * @see BluetoothWrapper#startConnectionManager(String, ReadOptions, WriteOptions, ReconnectOptions)
+ */
+public class ReconnectOptions
+{
+	/**
+	 * Number of attempts to reconnect before the connection is given up as lost.
+	 */
+	public int maxAttempts;
+
+	/**
+	 * Delay in millis before the first attempt.
+	 */
+	public int initialDelay;
+
+	/**
+	 * Maximum delay in millis before an attempt.
+	 */
+	public int maxDelay;
+}
@@ -0,0 +1,162 @@
+package org.apache.cordova.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * Decodes text from a stream of read chunks using a single CharsetDecoder. Bytes of a
+ * character that is split between two chunks are carried over to the next chunk instead
+ * of being replaced with garbage. Chunks of plain 7-bit ASCII are copied straight into
+ * the output when the charset is compatible with ASCII.
+ *
+ * An instance keeps state between chunks, so one should be used per connection.
+ *
+ * @see CharsetDecoder
+ */
+public class StreamDecoder
+{
+	/**
+	 * Initial size of the buffers, they grow if a larger chunk is decoded.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final CharsetDecoder 	_decoder;
+	private final boolean			_isAsciiCompatible;
+
+	/**
+	 * Holds the bytes carried over from the previous chunk, in write mode between calls.
+	 */
+	private ByteBuffer 	_input;
+	private CharBuffer	_output;
+
+	/**
+	 * Constructor for StreamDecoder.
+	 *
+	 * @param charset The charset the text is encoded with.
+	 */
+	public StreamDecoder(Charset charset)
+	{
+		_decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		_isAsciiCompatible 	= isAsciiCompatible(charset);
+		_input 				= ByteBuffer.allocate(INITIAL_CAPACITY);
+		_output 			= CharBuffer.allocate(outputSize(INITIAL_CAPACITY));
+	}
+
+	/**
+	 * Decode the next chunk of the stream. Trailing bytes of an incomplete character are
+	 * kept and decoded together with the next chunk.
+	 *
+	 * @param bytes		Buffer holding the chunk.
+	 * @param length	Number of bytes in the chunk, starting from the beginning of the buffer.
+	 * @return The text decoded so far, empty if the chunk only contained part of a character.
+	 */
+	public String decode(byte[] bytes, int length)
+	{
+		if(_isAsciiCompatible && _input.position() == 0 && isAscii(bytes, length))
+		{
+			return decodeAscii(bytes, length);
+		}
+
+		if(_input.remaining() < length)
+		{
+			ByteBuffer input = ByteBuffer.allocate(_input.position() + length);
+			_input.flip();
+			input.put(_input);
+			_input = input;
+		}
+
+		_input.put(bytes, 0, length);
+		_input.flip();
+
+		int required = outputSize(_input.remaining());
+		if(_output.capacity() < required)
+		{
+			_output = CharBuffer.allocate(required);
+		}
+
+		_output.clear();
+		_decoder.decode(_input, _output, false);
+
+		// Keep the incomplete tail for the next chunk
+		_input.compact();
+
+		_output.flip();
+		return _output.toString();
+	}
+
+	/**
+	 * Forget any carried over bytes, eg. when a new stream is started.
+	 */
+	public void reset()
+	{
+		_decoder.reset();
+		_input.clear();
+	}
+
+	private String decodeAscii(byte[] bytes, int length)
+	{
+		if(_output.capacity() < length)
+		{
+			_output = CharBuffer.allocate(length);
+		}
+
+		char[] chars = _output.array();
+		for(int i = 0; i < length; i++)
+		{
+			chars[i] = (char)bytes[i];
+		}
+
+		return new String(chars, 0, length);
+	}
+
+	private int outputSize(int inputSize)
+	{
+		return (int)Math.ceil(inputSize * (double)_decoder.maxCharsPerByte());
+	}
+
+	private static boolean isAscii(byte[] bytes, int length)
+	{
+		for(int i = 0; i < length; i++)
+		{
+			if(bytes[i] < 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if every 7-bit byte decodes into the same character with given charset.
+	 */
+	private static boolean isAsciiCompatible(Charset charset)
+	{
+		byte[] ascii = new byte[128];
+		for(int i = 0; i < ascii.length; i++)
+		{
+			ascii[i] = (byte)i;
+		}
+
+		String decoded = new String(ascii, charset);
+		if(decoded.length() != ascii.length)
+		{
+			return false;
+		}
+
+		for(int i = 0; i < ascii.length; i++)
+		{
+			if(decoded.charAt(i) != i)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,26 @@
+package org.apache.cordova.bluetooth;
+
+
+/**
+ * Options for how a managed connection writes data.
+ *
+ * @see BluetoothWrapper#startConnectionManager(String, ReadOptions, WriteOptions, ReconnectOptions)
+ */
+public class WriteOptions
+{
+	/**
+	 * Number of bytes waiting to be written at which further writes are refused.
+	 */
+	public int highWaterMark;
+
+	/**
+	 * Size in bytes up to which small writes are gathered into a single socket write,
+	 * 0 to write every write on its own.
+	 */
+	public int gatherSize;
+
+	/**
+	 * Time in millis a write can wait to be gathered with others.
+	 */
+	public int gatherDelay;
+}
@@ -0,0 +1,213 @@
+package org.apache.cordova.bluetooth;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import android.os.SystemClock;
+
+
+/**
+ * Bounded queue holding the data written to a connection until a writer thread has
+ * written it to the socket. Any thread can offer writes, and exactly one thread at a time
+ * takes them. The queue outlives its writer thread when a connection is reconnected, so
+ * that writes made while reconnecting are written once the connection is back.
+ *
+ * The queue is bounded by a high-water mark: a write is refused while the queued bytes and
+ * the new write together would go over the mark. A single write larger than the mark is
+ * still accepted when the queue is empty, so that it can be written at all.
+ *
+ * Small writes can optionally be gathered, so that they are written to the socket with a
+ * single call. Writes are then taken once they add up to the gather size, or once the
+ * oldest of them has waited for the gather delay. A write flagged to be flushed is taken
+ * right away, together with everything queued before it.
+ */
+public class WriteQueue
+{
+	/**
+	 * Data waiting to be written, and who to tell once it has been.
+	 */
+	public static class Write
+	{
+		public final byte[] 						data;
+		public final boolean 						isFlush;
+		public final BluetoothWrapper.WriteListener listener;
+
+		/**
+		 * Uptime in millis when the write was queued.
+		 */
+		public final long time;
+
+		public Write(byte[] data, boolean isFlush, BluetoothWrapper.WriteListener listener)
+		{
+			this.data 		= data;
+			this.isFlush 	= isFlush;
+			this.listener 	= listener;
+			this.time 		= SystemClock.uptimeMillis();
+		}
+	}
+
+	private final ArrayDeque<Write> _writes = new ArrayDeque<Write>();
+	private final int 				_highWaterMark;
+	private final int 				_gatherSize;
+	private final int 				_gatherDelay;
+
+	/**
+	 * Number of bytes in the queue.
+	 */
+	private int 	_queuedBytes;
+
+	/**
+	 * Number of writes in the queue that are flagged to be flushed.
+	 */
+	private int 	_flushCount;
+	private boolean _isClosed;
+
+	/**
+	 * Constructor for WriteQueue.
+	 *
+	 * @param highWaterMark	Number of queued bytes at which writes are refused.
+	 * @param gatherSize	Size in bytes up to which writes are gathered, 0 to take every write on its own.
+	 * @param gatherDelay	Time in millis a write can wait to be gathered with others.
+	 */
+	public WriteQueue(int highWaterMark, int gatherSize, int gatherDelay)
+	{
+		_highWaterMark 	= highWaterMark;
+		_gatherSize 	= gatherSize;
+		_gatherDelay 	= gatherDelay;
+	}
+
+	/**
+	 * Queue data to be written. If the queue has been closed, the listener is told that
+	 * the write failed.
+	 *
+	 * @param data		The data to write.
+	 * @param isFlush	True if the data should be written right away instead of waiting to be gathered.
+	 * @param listener	Told when the data has been written, or if writing it failed.
+	 * @return False if the queue is too full to take the data.
+	 */
+	public boolean offer(byte[] data, boolean isFlush, BluetoothWrapper.WriteListener listener)
+	{
+		synchronized(this)
+		{
+			if(!_isClosed)
+			{
+				if(!_writes.isEmpty() && _queuedBytes + data.length > _highWaterMark)
+				{
+					return false;
+				}
+
+				_writes.addLast(new Write(data, isFlush, listener));
+				_queuedBytes += data.length;
+				if(isFlush)
+				{
+					_flushCount++;
+				}
+
+				notifyAll();
+				return true;
+			}
+		}
+
+		// Told outside of the lock, which the writer thread needs
+		listener.onWriteFailed("The managed connection was stopped.");
+		return true;
+	}
+
+	/**
+	 * Take the next write, or the next writes gathered together. Waits until there is
+	 * something to take. When gathering, at least one write is taken, and more only as
+	 * long as they fit in the gather size.
+	 *
+	 * @param writes List the writes are added to, in the order they were queued.
+	 * @return False once the queue has been closed and everything in it has been taken.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public synchronized boolean take(List<Write> writes) throws InterruptedException
+	{
+		while(_writes.isEmpty())
+		{
+			if(_isClosed)
+			{
+				return false;
+			}
+			wait();
+		}
+
+		if(_gatherSize == 0)
+		{
+			writes.add(remove());
+			return true;
+		}
+
+		long deadline = _writes.peekFirst().time + _gatherDelay;
+		long delay;
+
+		while(!_isClosed && _flushCount == 0 && _queuedBytes < _gatherSize
+			&& (delay = deadline - SystemClock.uptimeMillis()) > 0)
+		{
+			wait(delay);
+		}
+
+		int gathered = 0;
+		Write write;
+
+		do
+		{
+			write 		= remove();
+			gathered 	+= write.data.length;
+			writes.add(write);
+		}
+		while(!write.isFlush && !_writes.isEmpty()
+			&& gathered + _writes.peekFirst().data.length <= _gatherSize);
+
+		return true;
+	}
+
+	/**
+	 * Stop accepting writes. Whatever is in the queue can still be taken.
+	 */
+	public synchronized void close()
+	{
+		_isClosed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Close the queue and tell the listeners of everything still in it that the write
+	 * failed. Used when nobody is left to take the writes.
+	 *
+	 * @param error Why the writes failed.
+	 */
+	public void fail(String error)
+	{
+		ArrayList<Write> writes = new ArrayList<Write>();
+
+		synchronized(this)
+		{
+			_isClosed = true;
+			while(!_writes.isEmpty())
+			{
+				writes.add(remove());
+			}
+			notifyAll();
+		}
+
+		for(Write write : writes)
+		{
+			write.listener.onWriteFailed(error);
+		}
+	}
+
+	private Write remove()
+	{
+		Write write = _writes.removeFirst();
+
+		_queuedBytes -= write.data.length;
+		if(write.isFlush)
+		{
+			_flushCount--;
+		}
+		return write;
+	}
+}
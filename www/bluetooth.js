@@ -118,6 +118,24 @@ Bluetooth.prototype.isDiscovering = function(onSuccess, onError)
  *
  * @property  {string}  name     Name of the device.
  * @property  {string}  address  Hardware address of the device.
+ * @property  {number}  [rssi]   Signal strength in dBm, only for discovered devices and if it is known.
+ */
+
+/**
+ * Criteria for discovered devices, checked natively so that devices which don't pass
+ * them are never sent to JavaScript. A device has to pass every criterion given.
+ *
+ * @typedef     Bluetooth~DiscoveryFilter
+ * @type        {object}
+ *
+ * @property  {number}          [minRssi]               Minimum signal strength in dBm. Devices whose RSSI is not known don't pass.
+ * @property  {Array<number>}   [majorDeviceClasses]    Major device classes (BluetoothClass.Device.Major) the device has to be one of.
+ * @property  {Array<number>}   [deviceClasses]         Device classes, major and minor (BluetoothClass.Device), the device has to be one of.
+ * @property  {string}          [name]                  Regular expression found in the name of the device.
+ * @property  {Array<string>}   [addresses]             Addresses the device has to have one of.
+ * @property  {Array<string>}   [addressPrefixes]       Prefixes the address of the device has to start with one of, eg. "00:1A:7D".
+ * @property  {Array<string>}   [uuids]                 Service UUIDs the device has to offer one of. Only UUIDs already known of the
+ *                                                      device are checked, ie. of paired devices and those whose UUIDs have been fetched.
  */
 
 /**
@@ -128,6 +146,17 @@ Bluetooth.prototype.isDiscovering = function(onSuccess, onError)
  * @param  {Bluetooth~BluetoothDevice}  device  The discovered device.
  */
 
+/**
+ * Invoked with the UUIDs of a discovered device, when fetching them after discovery.
+ *
+ * @callback Bluetooth~onUuidsFetched
+ *
+ * @param  {object}         device          The discovered device.
+ * @param  {string}         device.name     Name of the device.
+ * @param  {string}         device.address  Hardware address of the device.
+ * @param  {Array<string>}  device.uuids    UUIDs of the services of the device.
+ */
+
 /**
  * Start the device discovery process.
  *
@@ -138,10 +167,49 @@ Bluetooth.prototype.isDiscovering = function(onSuccess, onError)
  * @param  {Bluetooth~onError}              onError                 Invoked if there is an error, or the discovery finishes prematurely.
  * @param  {object}                         opts                    Optional options
  * @param  {number}                         opts.timeout            How many millis until the timeout error is invoked
+ * @param  {number}                         opts.cacheTtl           How many millis a discovered device is remembered, also across discoveries,
+ *                                                                  and not reported again unless its name or RSSI changes. 0 (default) reports
+ *                                                                  a device every time it is found.
+ * @param  {number}                         opts.rssiDelta          Change of RSSI in dBm at which a remembered device is reported again, default 10.
+ * @param  {number}                         opts.batchSize          Number of devices sent together, in which case onDeviceDiscovered is invoked with
+ *                                                                  an array of devices. 0 (default) invokes it with every device on its own.
+ * @param  {number}                         opts.batchDelay         How many millis a device can wait to be sent with others, default 500. Whatever
+ *                                                                  is left is sent before the discovery finishes or is stopped.
+ * @param  {Bluetooth~DiscoveryFilter}      opts.filter             Only devices passing the filter are reported.
+ * @param  {string|string[]}                opts.address            Shorthand for opts.filter.addresses, for looking up known devices.
+ * @param  {boolean}                        opts.stopOnMatch        Cancel the discovery natively as soon as a device passes the filter. Only that
+ *                                                                  device is reported, and onDiscoveryFinished is invoked once it has stopped.
+ * @param  {object}                         opts.connect            Connect to the matching device right away, implies opts.stopOnMatch. Takes
+ *                                                                  id, uuid, conn, timeout and stagger like the options of connect, the id is
+ *                                                                  required. If a device matches, onDiscoveryFinished is invoked with the
+ *                                                                  established connection (see Bluetooth~onConnected), and onError if it
+ *                                                                  fails to connect.
+ * @param  {boolean|number}                 opts.fetchUuids         Fetch the UUIDs of the reported devices once the inquiry finishes, the number
+ *                                                                  of devices fetched at once or true for 3. onDiscoveryFinished is invoked once
+ *                                                                  every device has been fetched. Not done when connecting (opts.connect).
+ * @param  {number}                         opts.uuidTimeout        How many millis to wait for the UUIDs of a device, default 6000. The UUIDs
+ *                                                                  already known of it are reported after that.
+ * @param  {Bluetooth~onUuidsFetched}       opts.onUuidsFetched     Invoked with the UUIDs of every device as they are fetched.
  */
 Bluetooth.prototype.startDiscovery = function(onDeviceDiscovered, onDiscoveryFinished, onError, opts)
 {
     opts = opts || {};
+
+    var filter = opts.filter;
+    if(opts.address)
+    {
+        // Copy the filter, the caller's one is left as it was
+        filter = {};
+        for(var key in opts.filter)
+        {
+            if(opts.filter.hasOwnProperty(key))
+            {
+                filter[key] = opts.filter[key];
+            }
+        }
+        filter.addresses = [].concat(opts.address);
+    }
+
     if(opts.timeout)
     {
         var timeout = function()
@@ -162,6 +230,21 @@ Bluetooth.prototype.startDiscovery = function(onDeviceDiscovered, onDiscoveryFin
             }
             onDiscoveryFinished();
         }
+        else if(result.uuids)
+        {
+            if(opts.onUuidsFetched)
+            {
+                opts.onUuidsFetched(result);
+            }
+        }
+        else if(result.conn)
+        {
+            if(self.timeout)
+            {
+                clearTimeout(self.timeout);
+            }
+            onDiscoveryFinished(result);
+        }
         else
         {
             onDeviceDiscovered(result);
@@ -175,7 +258,17 @@ Bluetooth.prototype.startDiscovery = function(onDeviceDiscovered, onDiscoveryFin
         }
         onError(error);
     },
-    "Bluetooth", "startDiscovery", []);
+    "Bluetooth", "startDiscovery", [{
+        cacheTtl: opts.cacheTtl || 0,
+        rssiDelta: opts.rssiDelta,
+        batchSize: opts.batchSize || 0,
+        batchDelay: opts.batchDelay,
+        filter: filter,
+        stopOnMatch: !!opts.stopOnMatch,
+        connect: opts.connect,
+        fetchUuids: opts.fetchUuids || 0,
+        uuidTimeout: opts.uuidTimeout
+    }]);
 }
 
 /**
@@ -295,10 +388,11 @@ Bluetooth.prototype.getUuids = function(onSuccess, onError, address)
  *
  * @param  {Bluetooth~onResult}     onSuccess   Invoked with a flag indicating whether there is a connection or not.
  * @param  {Bluetooth~onError}      onError     Invoked if there is an error.
+ * @param  {string}                 [id]        ID of the connection. Defaults to the default connection, see connect.
  */
-Bluetooth.prototype.isConnected = function(onSuccess, onError)
+Bluetooth.prototype.isConnected = function(onSuccess, onError, id)
 {
-    exec(onSuccess, onError, "Bluetooth", "isConnected", []);
+    exec(onSuccess, onError, "Bluetooth", "isConnected", [id || null]);
 }
 
 /**
@@ -310,45 +404,155 @@ Bluetooth.prototype.isConnected = function(onSuccess, onError)
  *
  * @param  {Bluetooth~onResult} onSuccess  Invoked with a flag indicating whether the connection is managed or not.
  * @param  {Bluetooth~onError}  onError    Invoked when there is an error.
+ * @param  {string}             [id]       ID of the connection. Defaults to the default connection, see connect.
  *
  * @see Bluetooth~onDataRead
  * @see write
  */
-Bluetooth.prototype.isConnectionManaged = function(onSuccess, onError)
+Bluetooth.prototype.isConnectionManaged = function(onSuccess, onError, id)
 {
-    exec(onSuccess, onError, "Bluetooth", "isConnectionManaged", []);
+    exec(onSuccess, onError, "Bluetooth", "isConnectionManaged", [id || null]);
 }
 
 /**
- * Attempt to connect with another device.
+ * Invoked when a connection is established.
+ *
+ * @callback Bluetooth~onConnected
+ *
+ * @param  {object}  connection         The established connection.
+ * @param  {string}  connection.id      ID of the connection.
+ * @param  {string}  connection.conn    Type of connection that connected.
+ */
+
+/**
+ * Attempt to connect with another device. Any number of connections can be
+ * open at once, each is identified by its ID, which can be passed to every
+ * other connection related method. Without an ID those methods use the
+ * default connection: the only connection, or if there are several, the only
+ * one whose ID is its address, ie. which was connected without opts.id. A
+ * number of connection attempts can be in progress at once, see
+ * setConnectParallelism; further attempts wait for their turn.
+ *
+ * Given an array of connection types, they are raced: each type is started
+ * opts.stagger millis after the previous one, or right away if the previous
+ * one fails. The first type that connects is kept and the others are closed.
+ * The type that last connected to the same device and UUID is started first.
  *
  * @memberOf Bluetooth
  *
- * @param  {Bluetooth~onSuccess}    onSuccess       Invoked when the connection is established.
+ * @param  {Bluetooth~onConnected}  onSuccess       Invoked when the connection is established.
  * @param  {Bluetooth~onError}      onError         Invoked if there is an error while connecting (for example invalid address).
  * @param  {json}                   opts            Options for the connection.
  * @param  {string}                 opts.address    Target address.
  * @param  {string}                 opts.uuid       Usually the target listens using some UUID, this is that UUID.
- * @param  {string}                 [opts.conn]     Type of connection, Secure by default.
+ * @param  {string|string[]}        [opts.conn]     Type of connection (Secure, Insecure or Hax), or types to race in order. Secure by default.
+ * @param  {string}                 [opts.id]       ID for the connection, can not be in use by another connection. Defaults to the address.
+ * @param  {number}                 [opts.timeout]  How many millis until the attempt is cancelled and fails. Defaults to 0, no timeout.
+ * @param  {number}                 [opts.stagger]  How many millis apart raced connection types are started. Defaults to 500.
  */
 Bluetooth.prototype.connect = function(onSuccess, onError, opts)
 {
     var conn = (typeof opts.conn === "undefined") ? "Secure" : opts.conn;
+    var id = opts.id || opts.address;
+
+    var stagger = (typeof opts.stagger === "undefined") ? 500 : opts.stagger;
+
+    exec(onSuccess, onError, "Bluetooth", "connect", [id, opts.address, opts.uuid, conn, opts.timeout || 0, stagger]);
+}
+
+/**
+ * Set how many connection attempts can be in progress at once. Defaults to 4.
+ *
+ * @memberOf Bluetooth
+ *
+ * @param  {Bluetooth~onSuccess}    onSuccess       Invoked if the parallelism was set.
+ * @param  {Bluetooth~onError}      onError         Invoked if there was an error (for example the number is below 1).
+ * @param  {number}                 parallelism     Number of concurrent connection attempts.
+ */
+Bluetooth.prototype.setConnectParallelism = function(onSuccess, onError, parallelism)
+{
+    exec(onSuccess, onError, "Bluetooth", "setConnectParallelism", [parallelism]);
+}
 
-    exec(onSuccess, onError, "Bluetooth", "connect", [opts.address, opts.uuid, conn]);
+/**
+ * Invoked when a remote device connects to us while listening.
+ *
+ * @callback Bluetooth~onAccepted
+ *
+ * @param  {object}  connection         The accepted connection.
+ * @param  {string}  connection.id      ID of the connection, which is the address of the device.
+ * @param  {string}  connection.address Address of the device.
+ * @param  {string}  connection.name    Name of the device.
+ */
+
+/**
+ * Listen for incoming connections from other devices. Every accepted
+ * connection can be managed like one that was connected to, with
+ * startConnectionManager, write and disconnect. onAccepted is invoked for
+ * every accepted connection until listening stops, after which onError is
+ * invoked with error code 16.
+ *
+ * Devices connecting beyond opts.maxClients are closed right away. Accepted
+ * connections can not be reconnected.
+ *
+ * @memberOf Bluetooth
+ *
+ * @param  {Bluetooth~onAccepted}   onAccepted          Invoked when a device connects.
+ * @param  {Bluetooth~onError}      onError             Invoked if listening can not be started, or when it stops.
+ * @param  {json}                   opts                Options for listening.
+ * @param  {string}                 opts.name           Service name to advertise.
+ * @param  {string}                 opts.uuid           UUID of the service to advertise.
+ * @param  {boolean}                [opts.secure]       Set to false to accept insecure connections. Defaults to true.
+ * @param  {number}                 [opts.maxClients]   How many accepted connections can be open at once. Defaults to 7.
+ *
+ * @see stopListening
+ */
+Bluetooth.prototype.startListening = function(onAccepted, onError, opts)
+{
+    var secure = (typeof opts.secure === "undefined") ? true : opts.secure;
+    var maxClients = (typeof opts.maxClients === "undefined") ? 7 : opts.maxClients;
+
+    exec(onAccepted, onError, "Bluetooth", "startListening", [opts.name, opts.uuid, secure, maxClients]);
 }
 
 /**
- * Disconnect from any current connection.
+ * Stop listening for incoming connections. Accepted connections stay open.
+ *
+ * @memberOf Bluetooth
+ *
+ * @param  {Bluetooth~onSuccess}    onSuccess   Invoked when listening has stopped.
+ * @param  {Bluetooth~onError}      onError     Invoked if there was an error (for example not listening).
+ */
+Bluetooth.prototype.stopListening = function(onSuccess, onError)
+{
+    exec(onSuccess, onError, "Bluetooth", "stopListening", []);
+}
+
+/**
+ * Check if incoming connections are being listened for.
+ *
+ * @memberOf Bluetooth
+ *
+ * @param  {Bluetooth~onResult}     onResult    Invoked with a flag indicating whether we are listening.
+ * @param  {Bluetooth~onError}      onError     Invoked if there was an error.
+ */
+Bluetooth.prototype.isListening = function(onResult, onError)
+{
+    exec(onResult, onError, "Bluetooth", "isListening", []);
+}
+
+/**
+ * Disconnect the given connection.
  *
  * @memberOf Bluetooth
  *
  * @param  {Bluetooth~onSuccess}    onSuccess   Invoked if disconnecting was succesful.
  * @param  {Bluetooth~onError}      onError     Invoked if there was an error disconnecting (for example no connection).
+ * @param  {string}                 [id]        ID of the connection. Defaults to the default connection, see connect.
  */
-Bluetooth.prototype.disconnect = function(onSuccess, onError)
+Bluetooth.prototype.disconnect = function(onSuccess, onError, id)
 {
-    exec(onSuccess, onError, "Bluetooth", "disconnect", []);
+    exec(onSuccess, onError, "Bluetooth", "disconnect", [id || null]);
 }
 
 /**
@@ -356,54 +560,205 @@ Bluetooth.prototype.disconnect = function(onSuccess, onError)
  *
  * @callback Bluetooth~onDataRead
  *
- * @param  {string}  data  The data received from the managed connection.
+ * @param  {string|ArrayBuffer}  data  The data received from the managed connection. An ArrayBuffer when the encoding is "BINARY".
+ */
+
+/**
+ * Invoked before an attempt to reconnect a lost managed connection.
+ *
+ * @callback Bluetooth~onReconnecting
+ *
+ * @param  {object}  event          The event.
+ * @param  {string}  event.id       ID of the connection.
+ * @param  {number}  event.attempt  Number of the attempt, starting from 1.
+ * @param  {number}  event.delay    How many millis until the attempt is started.
+ * @param  {string}  event.error    Why the connection was lost, or why the previous attempt failed.
+ */
+
+/**
+ * Invoked when a lost managed connection has been reconnected.
+ *
+ * @callback Bluetooth~onReconnected
+ *
+ * @param  {object}  event          The event.
+ * @param  {string}  event.id       ID of the connection.
+ * @param  {string}  event.conn     Type of connection that connected.
  */
 
 /**
  * Start managing the connection, allowing reading and writing.
  *
+ * Received data can be gathered into batches to reduce the amount of
+ * onDataRead invocations. A batch is delivered when it reaches
+ * opts.batchSize bytes, or when opts.batchDelay millis have passed since
+ * its first byte was received, whichever comes first.
+ *
+ * Alternatively received data can be split into frames, for example lines
+ * or length prefixed binary records, so that onDataRead is invoked once for
+ * every complete frame. Use the "BINARY" encoding for binary frames.
+ *
+ * With opts.reconnect set, a lost connection is reconnected with the same
+ * parameters it was connected with, and managed again with the same options.
+ * Instead of onError, opts.onReconnecting is invoked before every attempt and
+ * opts.onReconnected once the connection is back. Writes made in between wait
+ * to be written, up to opts.writeHighWaterMark bytes. onError is only invoked
+ * once every attempt has failed.
+ *
  * @memberOf Bluetooth
  *
- * @param  {Bluetooth~onDataRead}   onDataRead  Invoked when data is received from the managed connection.
- * @param  {Bluetooth~onError}      onError     Invoked if there is an error with the managed connection (connection lost, error reading data).
- * @param  {string}                 encoding    Encoding the data is returned with. Defaults to UTF-8.
+ * @param  {Bluetooth~onDataRead}   onDataRead          Invoked when data is received from the managed connection.
+ * @param  {Bluetooth~onError}      onError             Invoked if there is an error with the managed connection (connection lost, error reading data).
+ * @param  {string}                 encoding            Encoding the data is returned with. Defaults to UTF-8.
+ *                                                      Use "HEX" for a hexadecimal string, or "BINARY" for an ArrayBuffer of the raw bytes.
+ * @param  {object}                 [opts]              Optional options.
+ * @param  {string}                 [opts.id]           ID of the connection. Defaults to the default connection, see connect.
+ * @param  {number}                 [opts.queueCapacity]    How many bytes of received data can wait to be delivered. Defaults to 65536.
+ *                                                      Has to fit the longest frame, or 1024 bytes when the data isn't split into frames.
+ * @param  {string}                 [opts.overflow]     What to do when the queue is full: "Block" stops reading, which slows the remote
+ *                                                      device down, "DropOldest" and "DropNewest" drop data. Defaults to "Block".
+ * @param  {number}                 [opts.batchSize]    Size of a batch in bytes, at most opts.queueCapacity. Defaults to 0, which delivers
+ *                                                      data as it is received.
+ * @param  {number}                 [opts.batchDelay]   How many millis received data can wait in a batch. Defaults to 20.
+ * @param  {string|number[]}        [opts.delimiter]    Split received data into frames ending in this delimiter, and deliver each frame
+ *                                                      on its own without the delimiter. Either a string in the given encoding (UTF-8 for
+ *                                                      HEX and BINARY) or an array of byte values. Batching is not used with frames.
+ * @param  {number}                 [opts.maxFrameLength]   Frames reaching this many bytes are delivered even without the delimiter,
+ *                                                      and longer length prefixed frames are skipped. Defaults to 1024.
+ * @param  {number}                 [opts.frameSize]    Split received data into frames of exactly this many bytes.
+ * @param  {number}                 [opts.lengthFieldSize]  Split received data into frames that start with a length field of 1, 2 or 4 bytes.
+ *                                                      The field holds the number of bytes after it, and the delivered frame includes it.
+ * @param  {number}                 [opts.lengthFieldOffset]    Number of header bytes before the length field. Defaults to 0.
+ * @param  {boolean}                [opts.littleEndian] Set if the length field is little endian. Defaults to false (big endian).
+ * @param  {number}                 [opts.writeHighWaterMark]   How many bytes can wait to be written before further writes fail
+ *                                                      with error code 15. Defaults to 65536.
+ * @param  {number}                 [opts.gatherSize]   Gather small writes into socket writes of up to this many bytes.
+ *                                                      Defaults to 0, which writes every write on its own.
+ * @param  {number}                 [opts.gatherDelay]  How many millis a write can wait to be gathered with others. Defaults to 10.
+ * @param  {boolean|object}         [opts.reconnect]    Reconnect a lost connection. Either true, or an object with the following optional fields.
+ * @param  {number}                 [opts.reconnect.maxAttempts]    How many times to try to reconnect. Defaults to 5.
+ * @param  {number}                 [opts.reconnect.initialDelay]   How many millis to wait before the first attempt. The delay is
+ *                                                      doubled for every following attempt, and randomized between half of it and all
+ *                                                      of it. Defaults to 500.
+ * @param  {number}                 [opts.reconnect.maxDelay]   Maximum delay in millis between attempts. Defaults to 30000.
+ * @param  {Bluetooth~onReconnecting}   [opts.onReconnecting]   Invoked before every attempt to reconnect.
+ * @param  {Bluetooth~onReconnected}    [opts.onReconnected]    Invoked when the connection has been reconnected.
  *
  * @see stopConnectionManager
  */
-Bluetooth.prototype.startConnectionManager = function(onDataRead, onError, encoding)
+Bluetooth.prototype.startConnectionManager = function(onDataRead, onError, encoding, opts)
 {
-    exec(onDataRead, onError, "Bluetooth", "startConnectionManager", [encoding || "UTF-8"]);
+    opts = opts || {};
+
+    var onReconnecting = opts.onReconnecting;
+    var onReconnected = opts.onReconnected;
+
+    // Reconnect events arrive among the read data, which is never a plain object
+    var onResult = function(result)
+    {
+        if(result !== null && typeof result === "object" && typeof result.event === "string")
+        {
+            if(result.event === "reconnecting" && onReconnecting)
+            {
+                onReconnecting(result);
+            }
+            else if(result.event === "reconnected" && onReconnected)
+            {
+                onReconnected(result);
+            }
+            return;
+        }
+        onDataRead(result);
+    };
+
+    exec(onResult, onError, "Bluetooth", "startConnectionManager", [opts.id || null, encoding || "UTF-8", opts]);
+}
+
+/**
+ * Invoked with a number.
+ *
+ * @callback Bluetooth~onCount
+ *
+ * @param  {number}  count  The number.
+ */
+
+/**
+ * Get the number of received bytes the managed connection has dropped, because
+ * its queue was full and the overflow option is "DropOldest" or "DropNewest".
+ *
+ * @memberOf Bluetooth
+ *
+ * @param  {Bluetooth~onCount}      onSuccess   Invoked with the number of dropped bytes.
+ * @param  {Bluetooth~onError}      onError     Invoked if there was an error.
+ * @param  {string}                 [id]        ID of the connection. Defaults to the default connection, see connect.
+ *
+ * @see startConnectionManager
+ */
+Bluetooth.prototype.getDroppedBytes = function(onSuccess, onError, id)
+{
+    exec(onSuccess, onError, "Bluetooth", "getDroppedBytes", [id || null]);
 }
 
 /**
  * Stop the managed connection. Please note that this does not invoke disconnect,
  * so you can reinvoke startConnectionManager without having to invoke connect first.
+ * Data received before stopping is still delivered to the onDataRead of the
+ * stopped manager. Data received after stopping is not lost, it is delivered
+ * once the connection is managed again.
  *
  * @memberOf Bluetooth
  *
  * @param  {Bluetooth~onSuccess}    onSuccess   Invoked if stopping the managed connection was succesful.
  * @param  {Bluetooth~onError}      onError     Invoked if there was an error stopping the managed connection.
+ * @param  {string}                 [id]        ID of the connection. Defaults to the default connection, see connect.
  */
-Bluetooth.prototype.stopConnectionManager = function(onSuccess, onError)
+Bluetooth.prototype.stopConnectionManager = function(onSuccess, onError, id)
 {
-    exec(onSuccess, onError, "Bluetooth", "stopConnectionManager", []);
+    exec(onSuccess, onError, "Bluetooth", "stopConnectionManager", [id || null]);
 }
 
 /**
- * Write to the managed connection.
+ * Write to the managed connection. The data is queued and written in the
+ * background, so a slow remote device doesn't hold up other calls. When too
+ * much data is waiting to be written, the write fails with error code 15 and
+ * can be retried later.
+ *
+ * If the connection manager was started with opts.gatherSize, small writes
+ * are gathered before they are written. Set flush for writes that should go
+ * out right away, it also writes everything queued before them.
+ *
+ * ArrayBuffers and typed arrays such as Uint8Array are written as raw bytes,
+ * without any conversion to strings.
  *
  * @memberOf Bluetooth
  *
- * @param  {Bluetooth~onSuccess}    onSuccess   Invoked if writing was succesful.
- * @param  {Bluetooth~onError}      onError     Invoked if there was an error writing (for example there is no managed connection).
- * @param  {?}                      data        The data to be written to the managed connection.
+ * @param  {Bluetooth~onSuccess}    onSuccess   Invoked once the data has been written.
+ * @param  {Bluetooth~onError}      onError     Invoked if there was an error writing (for example there is no managed connection,
+ *                                              or the write queue is full).
+ * @param  {string|number|ArrayBuffer|ArrayBufferView}  data    The data to be written to the managed connection.
+ * @param  {string}                 [encoding]  Encoding of string data, or "HEX" for a hexadecimal string. Defaults to UTF-8.
+ *                                              Ignored for ArrayBuffers and typed arrays.
+ * @param  {boolean}                [forceString]   Set to write the data as a string.
+ * @param  {boolean}                [flush]     Set to write the data right away instead of gathering it. Defaults to false.
+ * @param  {string}                 [id]        ID of the connection. Defaults to the default connection, see connect.
  */
-Bluetooth.prototype.write = function(onSuccess, onError, data, encoding, forceString)
+Bluetooth.prototype.write = function(onSuccess, onError, data, encoding, forceString, flush, id)
 {
     encoding = encoding || "UTF-8";
     forceString = forceString || false;
+    flush = flush || false;
+
+    // Cordova passes ArrayBuffers as base64, which BINARY tells the native side to expect
+    if(data && data.buffer instanceof ArrayBuffer)
+    {
+        data = data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+    }
+    if(data instanceof ArrayBuffer)
+    {
+        encoding = "BINARY";
+        forceString = true;
+    }
 
-    exec(onSuccess, onError, "Bluetooth", "write", [data, encoding, forceString]);
+    exec(onSuccess, onError, "Bluetooth", "write", [id || null, data, encoding, forceString, flush]);
 }
 
 var bluetooth   = new Bluetooth();